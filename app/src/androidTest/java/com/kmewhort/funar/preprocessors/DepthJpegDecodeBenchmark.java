@@ -0,0 +1,157 @@
+package com.kmewhort.funar.preprocessors;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.android.Utils;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+import static org.opencv.core.CvType.CV_8UC1;
+
+/**
+ * Decoding a DEPTH_JPEG frame's depth straight to a single channel Mat, against the old way
+ * of decoding it to an ARGB Bitmap, converting that to a Mat and extracting a channel. The
+ * timings are only reported, as they depend on the device; the outputs have to agree.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DepthJpegDecodeBenchmark {
+    private static final String TAG = "DepthJpegDecodeBenchmark";
+    private static final int WIDTH = 240;
+    private static final int HEIGHT = 180;
+    private static final int WARM_UP_RUNS = 20;
+    private static final int MEASURED_RUNS = 200;
+    // the two decoders may round the IDCT differently
+    private static final double MAX_DIFFERENCE = 2;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void grayDecode_againstBitmapDecode() throws IOException {
+        byte[] depth = depthJpeg();
+        ByteBuffer frame = directBuffer(container(depth));
+        DepthJpegProcessor processor = new DepthJpegProcessor(false);
+        processor.setRawOutput(true);
+
+        Bitmap bitmap = null;
+        Mat argb = new Mat();
+        Mat old = new Mat();
+        for(int i = 0; i < WARM_UP_RUNS; i++) {
+            processor.process(frame.duplicate());
+            bitmap = bitmapDecode(depth, bitmap, argb, old);
+        }
+
+        long start = System.nanoTime();
+        Mat decoded = null;
+        for(int i = 0; i < MEASURED_RUNS; i++)
+            decoded = processor.process(frame.duplicate());
+        long grayNanos = (System.nanoTime() - start) / MEASURED_RUNS;
+
+        start = System.nanoTime();
+        for(int i = 0; i < MEASURED_RUNS; i++)
+            bitmap = bitmapDecode(depth, bitmap, argb, old);
+        long bitmapNanos = (System.nanoTime() - start) / MEASURED_RUNS;
+
+        Log.i(TAG, "depth decode: " + grayNanos + "ns per frame straight to gray, " +
+                bitmapNanos + "ns per frame through a Bitmap");
+
+        assertNotNull(decoded);
+        assertEquals(WIDTH, decoded.width());
+        assertEquals(HEIGHT, decoded.height());
+        Mat difference = new Mat();
+        Core.absdiff(decoded, old, difference);
+        assertTrue(Core.minMaxLoc(difference).maxVal <= MAX_DIFFERENCE);
+
+        difference.release();
+        argb.release();
+        old.release();
+        bitmap.recycle();
+        processor.releaseBuffers();
+    }
+
+    // the old path, reusing what it can between frames as it used to
+    private static Bitmap bitmapDecode(byte[] jpeg, Bitmap reuse, Mat argb, Mat gray) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        options.inBitmap = reuse;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        Utils.bitmapToMat(bitmap, argb);
+        Core.extractChannel(argb, gray, 0);
+        return bitmap;
+    }
+
+    // a smooth depth ramp with a raised disc, encoded like a depth trailer
+    private static byte[] depthJpeg() {
+        byte[] pixels = new byte[WIDTH * HEIGHT];
+        for(int y = 0; y < HEIGHT; y++) {
+            for(int x = 0; x < WIDTH; x++) {
+                int dx = x - WIDTH / 2;
+                int dy = y - HEIGHT / 2;
+                int value = (x + y) * 200 / (WIDTH + HEIGHT);
+                if(dx * dx + dy * dy < 1600)
+                    value += 40;
+                pixels[y * WIDTH + x] = (byte)value;
+            }
+        }
+        Mat depth = new Mat(HEIGHT, WIDTH, CV_8UC1);
+        depth.put(0, 0, pixels);
+        MatOfByte encoded = new MatOfByte();
+        assertTrue(Imgcodecs.imencode(".jpg", depth, encoded));
+        byte[] jpeg = encoded.toArray();
+        depth.release();
+        encoded.release();
+        return jpeg;
+    }
+
+    // a primary JPEG carrying a dynamic depth XMP directory, followed by the depth trailer
+    private static byte[] container(byte[] depth) throws IOException {
+        String xmp = "<x:xmpmeta><rdf:RDF><rdf:Description" +
+                " DepthMap:Format=\"RangeInverse\" DepthMap:Near=\"0.25\" DepthMap:Far=\"4.0\"" +
+                " DepthMap:DepthURI=\"android/depthmap\">" +
+                "<Container:Directory><rdf:Seq>" +
+                "<rdf:li><Container:Item Item:Mime=\"image/jpeg\" Item:Semantic=\"Primary\"/></rdf:li>" +
+                "<rdf:li><Container:Item Item:Mime=\"image/jpeg\" Item:Semantic=\"Depth\"" +
+                " Item:DataURI=\"android/depthmap\" Item:Length=\"" + depth.length + "\"/></rdf:li>" +
+                "</rdf:Seq></Container:Directory>" +
+                "</rdf:Description></rdf:RDF></x:xmpmeta>";
+        byte[] header = "http://ns.adobe.com/xap/1.0/\0".getBytes(StandardCharsets.US_ASCII);
+        byte[] packet = xmp.getBytes(StandardCharsets.UTF_8);
+        byte[] primary = depthJpeg();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(primary, 0, 2);
+        int segmentLength = 2 + header.length + packet.length;
+        output.write(new byte[] { (byte)0xff, (byte)0xe1, (byte)(segmentLength >> 8), (byte)segmentLength });
+        output.write(header);
+        output.write(packet);
+        output.write(primary, 2, primary.length - 2);
+        output.write(depth);
+        return output.toByteArray();
+    }
+
+    // direct, like an Image plane
+    private static ByteBuffer directBuffer(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        return buffer;
+    }
+}
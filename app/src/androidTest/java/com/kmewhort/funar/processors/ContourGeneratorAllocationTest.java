@@ -0,0 +1,111 @@
+package com.kmewhort.funar.processors;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Mat;
+
+import static org.junit.Assert.*;
+import static org.opencv.core.CvType.CV_16UC1;
+import static org.opencv.core.CvType.CV_8UC1;
+
+/**
+ * Once warmed up, ContourGenerator must not allocate any more frame buffers (native Mats)
+ * in any of its modes; the Java side is covered by ContourAllocationTest.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ContourGeneratorAllocationTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 241;
+    private static final int FRAME_COUNT = 8;
+    private static final int WARM_UP_RUNS = 30;
+    private static final int MEASURED_RUNS = 30;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void heatmap_steadyState() {
+        ContourGenerator generator = new ContourGenerator();
+        generator.setEqualPopulationLevels();
+        checkSteadyState(generator, depthFrames(CV_8UC1));
+    }
+
+    @Test
+    public void incremental_steadyState() {
+        ContourGenerator generator = new ContourGenerator();
+        generator.setIncremental(true);
+        checkSteadyState(generator, depthFrames(CV_8UC1));
+    }
+
+    @Test
+    public void serial_steadyState() {
+        ContourGenerator generator = new ContourGenerator();
+        generator.setParallel(false);
+        checkSteadyState(generator, depthFrames(CV_8UC1));
+    }
+
+    @Test
+    public void vector_steadyState() {
+        ContourGenerator generator = new ContourGenerator();
+        generator.setVectorOutput(true);
+        checkSteadyState(generator, depthFrames(CV_8UC1));
+    }
+
+    @Test
+    public void millimeters_steadyState() {
+        ContourGenerator generator = new ContourGenerator();
+        generator.setDepthRange(0.4, 2.0);
+        generator.setMetricLevels(0.1);
+        checkSteadyState(generator, depthFrames(CV_16UC1));
+    }
+
+    private void checkSteadyState(ContourGenerator generator, Mat[] frames) {
+        for(int i = 0; i < WARM_UP_RUNS; i++)
+            generator.process(frames[i % FRAME_COUNT]);
+
+        FramePool pool = FramePool.shared();
+        long allocations = pool.getAllocationCount();
+        int resizes = generator.getBufferResizeCount();
+        for(int i = 0; i < MEASURED_RUNS; i++)
+            assertNotNull(generator.process(frames[i % FRAME_COUNT]));
+
+        assertEquals(allocations, pool.getAllocationCount());
+        assertEquals(resizes, generator.getBufferResizeCount());
+
+        generator.releaseBuffers();
+        for(Mat frame : frames)
+            frame.release();
+    }
+
+    // a blob moving across a slope, in 8 bit depth or millimeters
+    private static Mat[] depthFrames(int type) {
+        Mat[] frames = new Mat[FRAME_COUNT];
+        for(int f = 0; f < FRAME_COUNT; f++) {
+            byte[] depth = new byte[WIDTH * HEIGHT];
+            short[] millimeters = new short[WIDTH * HEIGHT];
+            for(int y = 0; y < HEIGHT; y++) {
+                for(int x = 0; x < WIDTH; x++) {
+                    int dx = x - 40 - f * 30;
+                    int dy = y - HEIGHT / 2;
+                    int value = 20 + (x + y) * 200 / (WIDTH + HEIGHT);
+                    if(dx * dx + dy * dy < 1600)
+                        value += 30;
+                    depth[y * WIDTH + x] = (byte)value;
+                    millimeters[y * WIDTH + x] = (short)(400 + value * 6);
+                }
+            }
+            frames[f] = new Mat(HEIGHT, WIDTH, type);
+            if(type == CV_16UC1)
+                frames[f].put(0, 0, millimeters);
+            else
+                frames[f].put(0, 0, depth);
+        }
+        return frames;
+    }
+}
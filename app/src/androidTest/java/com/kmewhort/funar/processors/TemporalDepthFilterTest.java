@@ -0,0 +1,97 @@
+package com.kmewhort.funar.processors;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Mat;
+
+import static org.junit.Assert.*;
+import static org.opencv.core.CvType.CV_16UC1;
+import static org.opencv.core.CvType.CV_8UC1;
+
+/**
+ * The temporal filter takes only 0 as no depth; the nearest valid depth, which the depth
+ * preprocessors give anything at or nearer than the callibrated near, is kept as it is.
+ * Millimeter input is filtered the same way, without being cut down to 8 bits.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TemporalDepthFilterTest {
+    private static final int WIDTH = 5;
+    private static final int HEIGHT = 1;
+    // what the depth preprocessors map the callibrated near to
+    private static final int CALLIBRATED_NEAR = 1;
+    private static final int FAR_AWAY = 200;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void callibratedNear_isKept() {
+        TemporalDepthFilter filter = new TemporalDepthFilter();
+        Mat input = row(FAR_AWAY, FAR_AWAY, CALLIBRATED_NEAR, FAR_AWAY, FAR_AWAY);
+        byte[] output = new byte[WIDTH];
+        for(int i = 0; i < 10; i++) {
+            filter.process(input).get(0, 0, output);
+            assertEquals("frame " + i, CALLIBRATED_NEAR, output[2] & 0xff);
+            assertEquals("frame " + i, FAR_AWAY, output[1] & 0xff);
+        }
+        input.release();
+        filter.releaseBuffers();
+    }
+
+    @Test
+    public void noDepth_isFilledFromItsRow() {
+        TemporalDepthFilter filter = new TemporalDepthFilter();
+        Mat input = row(FAR_AWAY, FAR_AWAY, 0, FAR_AWAY, FAR_AWAY);
+        byte[] output = new byte[WIDTH];
+        filter.process(input).get(0, 0, output);
+        assertEquals(FAR_AWAY, output[2] & 0xff);
+        input.release();
+        filter.releaseBuffers();
+    }
+
+    @Test
+    public void millimeters_areFilteredAtFullPrecision() {
+        TemporalDepthFilter filter = new TemporalDepthFilter();
+        Mat first = millimeterRow(1200, 1200, 1200, 1200, 1200);
+        Mat second = millimeterRow(1210, 1210, 0, 1210, 1210);
+        short[] output = new short[WIDTH];
+
+        filter.process(first);
+        filter.process(first);
+        Mat result = filter.process(second);
+        assertEquals(CV_16UC1, result.type());
+        result.get(0, 0, output);
+        // averaged over the three frames rather than snapped to the new value, and the
+        // missing sample held while it has weight left
+        assertEquals(1203, output[0]);
+        assertEquals(1200, output[2]);
+
+        first.release();
+        second.release();
+        filter.releaseBuffers();
+    }
+
+    private static Mat millimeterRow(int... millimeters) {
+        short[] depth = new short[millimeters.length];
+        for(int i = 0; i < millimeters.length; i++)
+            depth[i] = (short)millimeters[i];
+        Mat mat = new Mat(HEIGHT, WIDTH, CV_16UC1);
+        mat.put(0, 0, depth);
+        return mat;
+    }
+
+    private static Mat row(int... depths) {
+        byte[] depth = new byte[depths.length];
+        for(int i = 0; i < depths.length; i++)
+            depth[i] = (byte)depths[i];
+        Mat mat = new Mat(HEIGHT, WIDTH, CV_8UC1);
+        mat.put(0, 0, depth);
+        return mat;
+    }
+}
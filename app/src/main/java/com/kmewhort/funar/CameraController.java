@@ -5,6 +5,11 @@ import android.content.Context;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.ImageFormat;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
@@ -43,7 +48,11 @@ import com.google.ar.core.exceptions.UnavailableArcoreNotInstalledException;
 import com.google.ar.core.exceptions.UnavailableDeviceNotCompatibleException;
 import com.google.ar.core.exceptions.UnavailableSdkTooOldException;
 import com.google.ar.core.exceptions.UnavailableUserDeclinedInstallationException;
+import com.kmewhort.funar.preprocessors.CallibrationStore;
+import com.kmewhort.funar.processors.ContourPolylines;
+import com.kmewhort.funar.processors.FramePool;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -56,6 +65,7 @@ import static android.graphics.Bitmap.Config.ARGB_8888;
 // adapted from https://inducesmile.com/android/android-camera2-api-example-tutorial/
 public class CameraController extends MainFullscreenActivityBase {
     private static final String TAG = "CameraController";
+    private static final String CALLIBRATION_FILE = "callibration.bin";
     private ImageView mainView;
     private static final SparseIntArray ORIENTATIONS = new SparseIntArray();
 
@@ -86,6 +96,14 @@ public class CameraController extends MainFullscreenActivityBase {
     private HandlerExecutor mBackgroundExecutor;
 
     private boolean mBitmapConsumed;
+    // on screen, and the one it replaced (which may still be being drawn)
+    private Bitmap mShownBitmap;
+    private Bitmap mReplacedBitmap;
+    // for drawing vector contours at the view's resolution
+    private Canvas mVectorCanvas;
+    private Rect mVectorRect;
+    private Paint mTexturePaint;
+    private Paint mContourPaint;
     private int mFrameCount;
 
     private EffectRunner mEffectRunner;
@@ -167,6 +185,15 @@ public class CameraController extends MainFullscreenActivityBase {
                     item.setTitle(getString(R.string.disable_auto_callibrate));
                 }
                 break;
+            case R.id.toggle_structured_light_callibrate:
+                if(mEffectRunner.getStructuredLightCallibration()) {
+                    mEffectRunner.setStructuredLightCallibration(false);
+                    item.setTitle(getString(R.string.enable_structured_light_callibrate));
+                } else {
+                    mEffectRunner.setStructuredLightCallibration(true);
+                    item.setTitle(getString(R.string.disable_structured_light_callibrate));
+                }
+                break;
             case R.id.min_depth_increase_meter:
                 mEffectRunner.setCallibratedMinDepth(mEffectRunner.getCallibratedMinDepth()+1.0);
                 invalidateOptionsMenu();
@@ -276,9 +303,12 @@ public class CameraController extends MainFullscreenActivityBase {
             captureRequestBuilder.set(CaptureRequest.JPEG_ORIENTATION, 90);
 
             mCurrentInputFormat = mEffectRunner.requiredInputFormat();
+            Size readerSize = imageDimension;
+            if(mCurrentInputFormat == ImageFormat.DEPTH16)
+                readerSize = depth16Dimension(characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP));
             ImageReader reader = ImageReader.newInstance(
-                    imageDimension.getWidth(),
-                    imageDimension.getHeight(),
+                    readerSize.getWidth(),
+                    readerSize.getHeight(),
                     mCurrentInputFormat,
                     1
             );
@@ -353,9 +383,22 @@ public class CameraController extends MainFullscreenActivityBase {
 
                 // show and re-capture
                 if(output != null) {
-                    Bitmap resultBmp = Bitmap.createBitmap(output.width(), output.height(), ARGB_8888);
-                    Utils.matToBitmap(output, resultBmp);
+                    Bitmap resultBmp;
+                    ContourPolylines polylines = mEffectRunner.getContourPolylines();
+                    if(polylines != null && mainView.getWidth() > 0 && mainView.getHeight() > 0) {
+                        resultBmp = drawVectors(output, polylines);
+                    } else {
+                        resultBmp = FramePool.shared().borrowBitmap(output.width(), output.height(), ARGB_8888);
+                        Utils.matToBitmap(output, resultBmp);
+                    }
                     showBitmap(resultBmp);
+
+                    // the view has swapped to the new bitmap, but the render thread may
+                    // still be drawing the one it replaced; only the one before that is
+                    // free to go back to the pool (and be reused or recycled)
+                    FramePool.shared().returnBitmap(mReplacedBitmap);
+                    mReplacedBitmap = mShownBitmap;
+                    mShownBitmap = resultBmp;
                 }
 
                 try {
@@ -372,6 +415,33 @@ public class CameraController extends MainFullscreenActivityBase {
         };
     }
 
+    // the output is only a coarse depth texture; scale it up to the view and draw the
+    // contour lines over it there, so they're sharp at the view's resolution
+    private Bitmap drawVectors(Mat texture, ContourPolylines polylines) {
+        if(mVectorCanvas == null) {
+            mVectorCanvas = new Canvas();
+            mVectorRect = new Rect();
+            mTexturePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+            mContourPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            mContourPaint.setColor(Color.GREEN);
+            mContourPaint.setStrokeWidth(2);
+        }
+
+        FramePool pool = FramePool.shared();
+        Bitmap textureBmp = pool.borrowBitmap(texture.width(), texture.height(), ARGB_8888);
+        Utils.matToBitmap(texture, textureBmp);
+
+        Bitmap resultBmp = pool.borrowBitmap(mainView.getWidth(), mainView.getHeight(), ARGB_8888);
+        mVectorCanvas.setBitmap(resultBmp);
+        mVectorRect.set(0, 0, resultBmp.getWidth(), resultBmp.getHeight());
+        mVectorCanvas.drawBitmap(textureBmp, null, mVectorRect, mTexturePaint);
+        polylines.draw(mVectorCanvas, mContourPaint);
+        mVectorCanvas.setBitmap(null);
+
+        pool.returnBitmap(textureBmp);
+        return resultBmp;
+    }
+
     private void showBitmap(Bitmap bitmap) {
         /* TODO: TextureView not working, using Image View for now
         Rect rc = new Rect();
@@ -397,6 +467,20 @@ public class CameraController extends MainFullscreenActivityBase {
         }
     }
 
+    // DEPTH16 only comes in the depth sensor's own sizes; the largest of them, or null if
+    // the camera has no DEPTH16 output
+    private Size depth16Dimension(StreamConfigurationMap map) {
+        Size[] sizes = map.getOutputSizes(ImageFormat.DEPTH16);
+        if(sizes == null)
+            return null;
+        Size largest = null;
+        for(Size size : sizes) {
+            if(largest == null || size.getWidth() * size.getHeight() > largest.getWidth() * largest.getHeight())
+                largest = size;
+        }
+        return largest;
+    }
+
     private void openCamera() {
         CameraManager manager = (CameraManager) getSystemService(Context.CAMERA_SERVICE);
         Log.e(TAG, "is camera open");
@@ -408,6 +492,15 @@ public class CameraController extends MainFullscreenActivityBase {
             assert map != null;
             imageDimension = map.getOutputSizes(SurfaceTexture.class)[0];
 
+            // pick up the last callibration, if it was for this camera and stream sizes; the
+            // stored warp is built for the DEPTH16 size too, where there is one
+            String fingerprint = cameraId + "/" + imageDimension;
+            Size depth16Size = depth16Dimension(map);
+            if(depth16Size != null)
+                fingerprint += "/" + depth16Size;
+            mEffectRunner.setCallibrationStore(new CallibrationStore(
+                    new File(getFilesDir(), CALLIBRATION_FILE), fingerprint));
+
             // Add permission for camera and let user grant the permission
             if (ActivityCompat.checkSelfPermission(this, Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED && ActivityCompat.checkSelfPermission(this, Manifest.permission.WRITE_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED) {
                 ActivityCompat.requestPermissions(CameraController.this, new String[]{Manifest.permission.CAMERA, Manifest.permission.WRITE_EXTERNAL_STORAGE}, REQUEST_CAMERA_PERMISSION);
@@ -479,6 +572,7 @@ public class CameraController extends MainFullscreenActivityBase {
         Log.e(TAG, "onPause");
         closeCamera();
         stopBackgroundThread();
+        FramePool.shared().clear();
         super.onPause();
     }
 }
\ No newline at end of file
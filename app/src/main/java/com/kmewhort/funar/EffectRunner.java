@@ -2,19 +2,31 @@ package com.kmewhort.funar;
 
 import android.media.Image;
 
+import com.kmewhort.funar.preprocessors.CallibrationStore;
 import com.kmewhort.funar.preprocessors.DepthJpegProcessor;
 import com.kmewhort.funar.preprocessors.ImagePreprocessor;
 import com.kmewhort.funar.preprocessors.ProjectionAreaProcessor;
 import com.kmewhort.funar.processors.ContourGenerator;
+import com.kmewhort.funar.processors.ContourPolylines;
 import com.kmewhort.funar.processors.ImageProcessor;
+import com.kmewhort.funar.processors.TemporalDepthFilter;
 
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
 
 import java.util.ArrayList;
 
 // this class runs a group of effects and provides for selecting an effect group
 public class EffectRunner extends ImagePreprocessor {
+    private static final Scalar BORDER_COLOR = new Scalar(255, 255, 255);
+    // the output border is this fraction of the output's width
+    private static final int BORDER_WIDTH_DIVISOR = 50;
+    // meters between the metric contours
+    private static final double METRIC_CONTOUR_SPACING = 0.1;
+
     private class EffectGroup {
         EffectGroup(String name, ImagePreprocessor effect) {
             mName = name;
@@ -24,6 +36,9 @@ public class EffectRunner extends ImagePreprocessor {
         EffectGroup(String name, ImagePreprocessor preprocessor, ImageProcessor effect) {
             this(name, preprocessor);
             processors.add(effect);
+            // the temporal filter weights the depth by its confidence
+            if(effect instanceof TemporalDepthFilter)
+                preprocessor.setConfidenceOutput(true);
         }
         EffectGroup(String name, ImagePreprocessor preprocessor, ImageProcessor effect1, ImageProcessor effect2) {
             this(name, preprocessor, effect1);
@@ -39,6 +54,11 @@ public class EffectRunner extends ImagePreprocessor {
     }
     private EffectGroup mCurrentGroup;
     private ArrayList<EffectGroup> mAllEffectGroups;
+    // groups switched away from, whose buffers are released from the processing thread
+    private ArrayList<EffectGroup> mReleasePending = new ArrayList<>();
+    // traced by this frame's contour generator, if any
+    private ContourPolylines mContourPolylines;
+    private CallibrationStore mCallibrationStore;
 
     public EffectRunner() {
         initializeProcessors();
@@ -54,6 +74,9 @@ public class EffectRunner extends ImagePreprocessor {
         if(mCurrentGroup.getPreprocessor().getCallibration() != null)
             prevGroup.getPreprocessor().setCallibration(mCurrentGroup.getPreprocessor().getCallibration());
 
+        synchronized (mReleasePending) {
+            mReleasePending.add(mCurrentGroup);
+        }
         mCurrentGroup = mAllEffectGroups.get(prevIndex);
         return mCurrentGroup;
     }
@@ -67,6 +90,9 @@ public class EffectRunner extends ImagePreprocessor {
         if(mCurrentGroup.getPreprocessor().getCallibration() != null)
             nextGroup.getPreprocessor().setCallibration(mCurrentGroup.getPreprocessor().getCallibration());
 
+        synchronized (mReleasePending) {
+            mReleasePending.add(mCurrentGroup);
+        }
         mCurrentGroup = mAllEffectGroups.get(nextIndex);
         return mCurrentGroup;
     }
@@ -77,25 +103,50 @@ public class EffectRunner extends ImagePreprocessor {
         mAllEffectGroups.add(new EffectRunner.EffectGroup(
                 "Projected heatmap with dynamic depth callibration",
                 new ProjectionAreaProcessor(false, false),
-                new ContourGenerator()
+                new TemporalDepthFilter(),
+                contourGenerator(true)
         ));
 
         mAllEffectGroups.add(new EffectRunner.EffectGroup(
                 "Projected heatmap with static depth callibration",
                 new ProjectionAreaProcessor(false, true),
-                new ContourGenerator()
+                new TemporalDepthFilter(),
+                contourGenerator(true)
+        ));
+
+        mAllEffectGroups.add(new EffectRunner.EffectGroup(
+                "Projected 10cm contours with static depth callibration",
+                new ProjectionAreaProcessor(false, true),
+                new TemporalDepthFilter(),
+                metricContourGenerator(METRIC_CONTOUR_SPACING)
+        ));
+
+        mAllEffectGroups.add(new EffectRunner.EffectGroup(
+                "Projected contour lines with dynamic depth callibration",
+                new ProjectionAreaProcessor(false, false),
+                new TemporalDepthFilter(),
+                vectorContourGenerator()
+        ));
+
+        mAllEffectGroups.add(new EffectRunner.EffectGroup(
+                "Projected heatmap from raw ToF depth (unregistered)",
+                depth16ProjectionProcessor(false),
+                new TemporalDepthFilter(),
+                contourGenerator(true)
         ));
 
         mAllEffectGroups.add(new EffectRunner.EffectGroup(
                 "Full input depth heatmap with dynamic depth callibration",
                 new DepthJpegProcessor(false),
-                new ContourGenerator()
+                new TemporalDepthFilter(),
+                contourGenerator(false)
         ));
 
         mAllEffectGroups.add(new EffectRunner.EffectGroup(
                 "Full input depth heatmap with static depth callibration",
                 new DepthJpegProcessor(true),
-                new ContourGenerator()
+                new TemporalDepthFilter(),
+                contourGenerator(false)
         ));
 
         mAllEffectGroups.add(new EffectRunner.EffectGroup(
@@ -104,8 +155,54 @@ public class EffectRunner extends ImagePreprocessor {
         ));
     }
 
+    // projected depth comes from DEPTH16 frames once the projection area is callibrated,
+    // in millimeters so the contours keep the sensor's full precision; only lines up with
+    // the projection where the ToF sensor's view matches the colour camera's (see
+    // ProjectionAreaProcessor.setUseDepth16)
+    private ProjectionAreaProcessor depth16ProjectionProcessor(boolean staticDepthCallibration) {
+        ProjectionAreaProcessor processor = new ProjectionAreaProcessor(false, staticDepthCallibration);
+        processor.setUseDepth16(true);
+        processor.setDepth16Millimeters(true);
+        return processor;
+    }
+
+    // contours at levels following the depth histogram; incremental for the projected
+    // scene, which is mostly still, so only what changes is redrawn
+    private ContourGenerator contourGenerator(boolean incremental) {
+        ContourGenerator generator = new ContourGenerator();
+        generator.setEqualPopulationLevels();
+        generator.setIncremental(incremental);
+        return generator;
+    }
+
+    // contours every spacing meters across the callibrated depth range, so each line is a
+    // real height; with static callibration, they stay put as the scene changes
+    private ContourGenerator metricContourGenerator(double spacing) {
+        ContourGenerator generator = new ContourGenerator();
+        generator.setMetricLevels(spacing);
+        generator.setIncremental(true);
+        return generator;
+    }
+
+    // contours as polylines, drawn at the display's resolution over a coarse heatmap
+    private ContourGenerator vectorContourGenerator() {
+        ContourGenerator generator = new ContourGenerator();
+        generator.setEqualPopulationLevels();
+        generator.setVectorOutput(true);
+        return generator;
+    }
+
+    // the contour polylines to draw over the last output, if the current effect output
+    // vectors for it; null for frames the generator didn't run on, e.g. callibration ones
+    public ContourPolylines getContourPolylines() {
+        return mContourPolylines;
+    }
+
     @Override
     public Mat process(Image img) {
+        releasePendingBuffers();
+        mContourPolylines = null;
+
         ImagePreprocessor preprocessor = mCurrentGroup.getPreprocessor();
         Mat output = preprocessor.process(img);
         if(output == null) return null;
@@ -114,13 +211,35 @@ public class EffectRunner extends ImagePreprocessor {
 
         for(int i = 1; i < mCurrentGroup.processors.size(); i++) {
             ImageProcessor processor = mCurrentGroup.processors.get(i);
+            if(processor instanceof ContourGenerator) {
+                // for metric contour levels
+                ((ContourGenerator)processor).setDepthRange(
+                        preprocessor.getCallibratedMinDepth(), preprocessor.getCallibratedMaxDepth());
+            } else if(processor instanceof TemporalDepthFilter && i == 1) {
+                // straight after the preprocessor, so its confidence lines up with the input
+                ((TemporalDepthFilter)processor).setConfidence(preprocessor.getConfidence());
+            }
             output = processor.process(output);
             if(output == null) return null;
+            if(processor instanceof ContourGenerator)
+                mContourPolylines = ((ContourGenerator)processor).getPolylines();
         }
+
+        if(preprocessor.needsOutputBorder())
+            drawBorder(output);
         return output;
     }
 
+    // every processor rewrites its whole output each frame, so this doesn't stay behind
+    private void drawBorder(Mat output) {
+        int thickness = Math.max(2, output.width() / BORDER_WIDTH_DIVISOR);
+        // the rectangle's line is centred on the edge, so half of it is off the output
+        Imgproc.rectangle(output, new Point(0, 0), new Point(output.width() - 1, output.height() - 1),
+                BORDER_COLOR, thickness * 2);
+    }
+
     public Mat process(Mat mat) {
+        mContourPolylines = null;
         Mat output = null;
         for(int i = 0; i < mCurrentGroup.processors.size(); i++) {
             ImageProcessor processor = mCurrentGroup.processors.get(i);
@@ -130,12 +249,28 @@ public class EffectRunner extends ImagePreprocessor {
         return output;
     }
 
+    private void releasePendingBuffers() {
+        synchronized (mReleasePending) {
+            for(EffectGroup group : mReleasePending) {
+                if(group == mCurrentGroup)
+                    continue;
+                for(ImageProcessor processor : group.processors)
+                    processor.releaseBuffers();
+            }
+            mReleasePending.clear();
+        }
+    }
+
     public String currentEffectName() {
         return mCurrentGroup.getName();
     }
 
+    // the operator's recallibrate; the stored callibration is the one being replaced, so
+    // it mustn't come back on the next launch
     @Override
     public void recallibrate() {
+        if(mCallibrationStore != null)
+            mCallibrationStore.clear();
         mCurrentGroup.getPreprocessor().recallibrate();
     }
 
@@ -154,6 +289,18 @@ public class EffectRunner extends ImagePreprocessor {
         return mCurrentGroup.getPreprocessor().getAutoCallibrate();
     }
 
+    // a choice of how to callibrate rather than of effect, so it's kept across them all
+    @Override
+    public void setStructuredLightCallibration(boolean structuredLight) {
+        for(EffectGroup group : mAllEffectGroups)
+            group.getPreprocessor().setStructuredLightCallibration(structuredLight);
+    }
+
+    @Override
+    public boolean getStructuredLightCallibration() {
+        return mCurrentGroup.getPreprocessor().getStructuredLightCallibration();
+    }
+
     @Override
     public int requiredInputFormat() {
         return mCurrentGroup.getPreprocessor().requiredInputFormat();
@@ -169,6 +316,14 @@ public class EffectRunner extends ImagePreprocessor {
         mCurrentGroup.getPreprocessor().setCallibration(callib);
     }
 
+    // every effect shares the stored callibration, so switching effects doesn't start over
+    @Override
+    public void setCallibrationStore(CallibrationStore store) {
+        mCallibrationStore = store;
+        for(EffectGroup group : mAllEffectGroups)
+            group.getPreprocessor().setCallibrationStore(store);
+    }
+
     @Override
     public boolean supportsDepthCallibration() {
         return mCurrentGroup.getPreprocessor().supportsDepthCallibration();
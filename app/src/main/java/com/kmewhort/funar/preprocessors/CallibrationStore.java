@@ -0,0 +1,233 @@
+package com.kmewhort.funar.preprocessors;
+
+import android.util.Log;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// The projection callibration, kept on disk so a restart goes straight back to projecting.
+// A small binary file in native byte order: a header with the camera configuration it was
+// taken with, the quad, the warp and the depth range, then the warp's remap tables. It's
+// memory-mapped to load, and the remap tables are used from the mapping as they are; the
+// whole file is ignored if it was written for another camera configuration (or byte order).
+// Saving writes tens of MB and syncs, so it's done on a writer thread of its own, never on
+// the camera's.
+public final class CallibrationStore {
+    private static final String TAG = "CallibrationStore";
+    private static final int MAGIC = 0x464e4152;
+    private static final int VERSION = 1;
+
+    // one for all stores, so saves and clears reach the file in the order they were asked for
+    private static final ExecutorService sWriter = Executors.newSingleThreadExecutor();
+
+    private final File mFile;
+    private final String mCameraFingerprint;
+
+    // what was stored, as read back by load()
+    static final class Callibration {
+        int rgbWidth;
+        int rgbHeight;
+        boolean colorOutput;
+        int warpWidth;
+        int warpHeight;
+        double near;
+        double far;
+        float[] scaledDownQuad = new float[8];
+        double[] warp = new double[9];
+        // null if the tables weren't stored; they reference mapping, so keep it with them
+        Mat warpMapXY;
+        Mat warpMapWeights;
+        MappedByteBuffer mapping;
+
+        MatOfPoint2f scaledDownQuad() {
+            MatOfPoint2f quad = new MatOfPoint2f();
+            quad.alloc(4);
+            quad.put(0, 0, scaledDownQuad);
+            return quad;
+        }
+
+        Mat warpMat() {
+            Mat warp = new Mat(3, 3, CvType.CV_64FC1);
+            warp.put(0, 0, this.warp);
+            return warp;
+        }
+    }
+
+    // cameraFingerprint identifies the camera and stream configuration the callibration
+    // is only good for
+    public CallibrationStore(File file, String cameraFingerprint) {
+        mFile = file;
+        mCameraFingerprint = cameraFingerprint;
+    }
+
+    // the stored callibration, or null if there's none for this camera configuration
+    Callibration load() {
+        if(!mFile.exists())
+            return null;
+
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r");
+             FileChannel channel = file.getChannel()) {
+            MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapping.order(ByteOrder.nativeOrder());
+
+            if(mapping.getInt() != MAGIC || mapping.getInt() != VERSION)
+                return null;
+            byte[] fingerprint = new byte[mapping.getInt()];
+            mapping.get(fingerprint);
+            align(mapping, 4);
+            if(!mCameraFingerprint.equals(new String(fingerprint, StandardCharsets.UTF_8)))
+                return null;
+
+            Callibration callibration = new Callibration();
+            callibration.rgbWidth = mapping.getInt();
+            callibration.rgbHeight = mapping.getInt();
+            callibration.colorOutput = mapping.getInt() != 0;
+            callibration.warpWidth = mapping.getInt();
+            callibration.warpHeight = mapping.getInt();
+            align(mapping, 8);
+            callibration.near = mapping.getDouble();
+            callibration.far = mapping.getDouble();
+            for(int i = 0; i < 8; i++)
+                callibration.scaledDownQuad[i] = mapping.getFloat();
+            align(mapping, 8);
+            for(int i = 0; i < 9; i++)
+                callibration.warp[i] = mapping.getDouble();
+
+            int rows = mapping.getInt();
+            int cols = mapping.getInt();
+            if(rows > 0 && cols > 0) {
+                // wrap the tables in place rather than copying them out
+                int xyLength = rows * cols * 4;
+                int weightsLength = rows * cols * 2;
+                if(mapping.remaining() < xyLength + weightsLength)
+                    return null;
+                callibration.warpMapXY = new Mat(rows, cols, CvType.CV_16SC2, slice(mapping, xyLength));
+                callibration.warpMapWeights = new Mat(rows, cols, CvType.CV_16UC1, slice(mapping, weightsLength));
+                callibration.mapping = mapping;
+            }
+            return callibration;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Couldn't load the stored callibration: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // copies the tables (a native copy, cheap next to the write) and leaves the rest to the
+    // writer thread, so the caller is free to release or rebuild them straight away
+    void save(Callibration callibration) {
+        final Callibration snapshot = new Callibration();
+        snapshot.rgbWidth = callibration.rgbWidth;
+        snapshot.rgbHeight = callibration.rgbHeight;
+        snapshot.colorOutput = callibration.colorOutput;
+        snapshot.warpWidth = callibration.warpWidth;
+        snapshot.warpHeight = callibration.warpHeight;
+        snapshot.near = callibration.near;
+        snapshot.far = callibration.far;
+        snapshot.scaledDownQuad = callibration.scaledDownQuad.clone();
+        snapshot.warp = callibration.warp.clone();
+        if(callibration.warpMapXY != null) {
+            snapshot.warpMapXY = callibration.warpMapXY.clone();
+            snapshot.warpMapWeights = callibration.warpMapWeights.clone();
+        }
+
+        sWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(snapshot);
+                if(snapshot.warpMapXY != null) {
+                    snapshot.warpMapXY.release();
+                    snapshot.warpMapWeights.release();
+                }
+            }
+        });
+    }
+
+    // writes to a temporary file and renames it over the old one, so a crash part way
+    // through leaves the last callibration intact
+    private void write(Callibration callibration) {
+        byte[] fingerprint = mCameraFingerprint.getBytes(StandardCharsets.UTF_8);
+        int rows = callibration.warpMapXY == null ? 0 : callibration.warpMapXY.rows();
+        int cols = callibration.warpMapXY == null ? 0 : callibration.warpMapXY.cols();
+        int size = 12 + fingerprint.length + 3 + 20 + 7 + 16 + 32 + 7 + 72 + 8 + rows * cols * 6;
+
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(fingerprint.length);
+        buffer.put(fingerprint);
+        align(buffer, 4);
+        buffer.putInt(callibration.rgbWidth);
+        buffer.putInt(callibration.rgbHeight);
+        buffer.putInt(callibration.colorOutput ? 1 : 0);
+        buffer.putInt(callibration.warpWidth);
+        buffer.putInt(callibration.warpHeight);
+        align(buffer, 8);
+        buffer.putDouble(callibration.near);
+        buffer.putDouble(callibration.far);
+        for(int i = 0; i < 8; i++)
+            buffer.putFloat(callibration.scaledDownQuad[i]);
+        align(buffer, 8);
+        for(int i = 0; i < 9; i++)
+            buffer.putDouble(callibration.warp[i]);
+        buffer.putInt(rows);
+        buffer.putInt(cols);
+        if(rows > 0 && cols > 0) {
+            short[] table = new short[rows * cols * 2];
+            callibration.warpMapXY.get(0, 0, table);
+            buffer.asShortBuffer().put(table);
+            buffer.position(buffer.position() + table.length * 2);
+            table = new short[rows * cols];
+            callibration.warpMapWeights.get(0, 0, table);
+            buffer.asShortBuffer().put(table);
+            buffer.position(buffer.position() + table.length * 2);
+        }
+        buffer.flip();
+
+        File temporary = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream output = new FileOutputStream(temporary)) {
+            output.getChannel().write(buffer);
+            output.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't save the callibration: " + e.getMessage());
+            temporary.delete();
+            return;
+        }
+        if(!temporary.renameTo(mFile))
+            Log.w(TAG, "Couldn't replace the stored callibration");
+    }
+
+    // forget the stored callibration, e.g. when the operator asks to recallibrate
+    public void clear() {
+        sWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                mFile.delete();
+            }
+        });
+    }
+
+    private static void align(ByteBuffer buffer, int alignment) {
+        int padding = (alignment - buffer.position() % alignment) % alignment;
+        buffer.position(buffer.position() + padding);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int length) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+}
@@ -0,0 +1,250 @@
+package com.kmewhort.funar.preprocessors;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+
+import com.kmewhort.funar.processors.FramePool;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+// Depth straight from a DEPTH16 image plane, with no JPEG decode. Each sample is a 13 bit
+// range in millimeters plus a 3 bit confidence (0 meaning full confidence, otherwise
+// (c-1)/7); see https://developer.android.com/reference/android/graphics/ImageFormat#DEPTH16.
+// The output is the same 8 bit near-to-far depth as DepthJpegProcessor, so it can stand in
+// for it in an effect group, or optionally the 16 bit range in millimeters.
+public class Depth16Processor extends ImagePreprocessor {
+    private static final int RANGE_MASK = 0x1fff;
+    private static final int CONFIDENCE_SHIFT = 13;
+    // confidence codes 1-4 are below 50%; treat those samples like missing ones
+    private static final int MIN_CONFIDENCE_CODE = 5;
+    private static final double MAX_RANGE = RANGE_MASK / 1000.0;
+
+    protected Mat mDepthMat;
+    protected short[] mRange;
+    protected byte[] mDepth;
+    protected int mWidth;
+    protected int mHeight;
+
+    protected double mNear; // in meters
+    protected double mFar;
+    protected boolean mCallibrated;
+    protected boolean mStaticCallibration;
+    protected boolean mMillimeterOutput;
+    protected DepthRangeCalibrator mCalibrator;
+    // whether a static range still has to be taken from the calibrator
+    protected boolean mRangePending;
+
+    // histogram of the valid ranges, fed to the calibrator
+    private float[] mRangeCounts;
+    private double[] mRangeDepths;
+
+    // range in millimeters to output depth
+    private byte[] mDepthLut;
+    private double mLutNear;
+    private double mLutFar;
+
+    public Depth16Processor(boolean staticCallibration) {
+        super();
+
+        mStaticCallibration = staticCallibration;
+        mCalibrator = new DepthRangeCalibrator();
+        mNear = 10000;
+        mFar = 0;
+        mRangeCounts = new float[RANGE_MASK + 1];
+        mRangeDepths = new double[RANGE_MASK + 1];
+        for(int r = 0; r < mRangeDepths.length; r++)
+            mRangeDepths[r] = r / 1000.0;
+        recallibrate();
+    }
+
+    public int requiredInputFormat() {
+        return ImageFormat.DEPTH16;
+    }
+
+    public Mat process(Image img) {
+        Image.Plane plane = img.getPlanes()[0];
+        readSamples(plane.getBuffer().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer(),
+                img.getWidth(), img.getHeight(), plane.getRowStride() / 2);
+        img.close();
+
+        convertDepth();
+        return mDepthMat;
+    }
+
+    // output the range in millimeters as 16 bit depth (0 where missing or low confidence),
+    // rather than 8 bit depth renormalized to the callibrated range
+    public void setMillimeterOutput(boolean millimeters) {
+        mMillimeterOutput = millimeters;
+    }
+
+    @Override
+    public boolean supportsDepthCallibration() {
+        return mStaticCallibration;
+    }
+
+    @Override
+    public double getCallibratedMinDepth() {
+        return mNear;
+    }
+
+    @Override
+    public void setCallibratedMinDepth(double depth) {
+        mNear = depth;
+    }
+
+    @Override
+    public double getCallibratedMaxDepth() {
+        return mFar;
+    }
+
+    @Override
+    public void setCallibratedMaxDepth(double depth) {
+        mFar = depth;
+    }
+
+    private void readSamples(ShortBuffer samples, int width, int height, int rowStride) {
+        if(mRange == null || width != mWidth || height != mHeight) {
+            mWidth = width;
+            mHeight = height;
+            mRange = new short[width * height];
+            mDepth = new byte[width * height];
+        }
+
+        if(rowStride == width) {
+            samples.get(mRange, 0, width * height);
+        } else {
+            for(int y = 0; y < height; y++) {
+                samples.position(y * rowStride);
+                samples.get(mRange, y * width, width);
+            }
+        }
+    }
+
+    private void convertDepth() {
+        if(mMillimeterOutput) {
+            convertMillimeters();
+            return;
+        }
+
+        // renormalize to the callibrated range, which lags the histogram by a frame, or
+        // to the whole sensor range until there is one
+        byte[] lut = mCallibrated ? depthLut(mNear, mFar) : depthLut(0, MAX_RANGE);
+
+        // one pass to convert and to histogram the ranges; missing and low confidence
+        // samples map to 0
+        short[] range = mRange;
+        byte[] depth = mDepth;
+        float[] counts = mRangeCounts;
+        Arrays.fill(counts, 0);
+        for(int i = 0; i < range.length; i++) {
+            int sample = range[i] & 0xffff;
+            if(isValidSample(sample)) {
+                int r = sample & RANGE_MASK;
+                depth[i] = lut[r];
+                counts[r]++;
+            } else {
+                depth[i] = 0;
+            }
+        }
+
+        updateCalibration();
+
+        mDepthMat = FramePool.shared().reuseMat(mDepthMat, mHeight, mWidth, CvType.CV_8UC1);
+        mDepthMat.put(0, 0, depth);
+    }
+
+    // the ranges as they are, with the confidence bits and invalid samples cleared in place
+    private void convertMillimeters() {
+        short[] range = mRange;
+        float[] counts = mRangeCounts;
+        Arrays.fill(counts, 0);
+        for(int i = 0; i < range.length; i++) {
+            int sample = range[i] & 0xffff;
+            if(isValidSample(sample)) {
+                int r = sample & RANGE_MASK;
+                range[i] = (short)r;
+                counts[r]++;
+            } else {
+                range[i] = 0;
+            }
+        }
+
+        updateCalibration();
+
+        mDepthMat = FramePool.shared().reuseMat(mDepthMat, mHeight, mWidth, CvType.CV_16UC1);
+        mDepthMat.put(0, 0, range);
+    }
+
+    private void updateCalibration() {
+        mCalibrator.addFrame(mRangeCounts, mRangeDepths);
+        if(mCalibrator.isSettled() && (mRangePending || !mStaticCallibration)) {
+            mNear = mCalibrator.getNear();
+            mFar = mCalibrator.getFar();
+            mRangePending = false;
+            mCallibrated = true;
+        }
+    }
+
+    private static boolean isValidSample(int sample) {
+        int confidence = sample >>> CONFIDENCE_SHIFT;
+        return (sample & RANGE_MASK) != 0 && (confidence == 0 || confidence >= MIN_CONFIDENCE_CODE);
+    }
+
+    // lookup table from the 13 bit range to depth renormalized to 1-255 between near and
+    // far; rebuilt only when the range changes
+    private byte[] depthLut(double near, double far) {
+        if(mDepthLut != null && near == mLutNear && far == mLutFar)
+            return mDepthLut;
+
+        if(mDepthLut == null)
+            mDepthLut = new byte[RANGE_MASK + 1];
+        depthTable(near, far, mDepthLut);
+        mLutNear = near;
+        mLutFar = far;
+        return mDepthLut;
+    }
+
+    // fills table with the 8 bit depth of each range in millimeters; 0 is left for missing
+    // samples, so valid depth, however near, is 1 to 255
+    static void depthTable(double near, double far, byte[] table) {
+        for(int r = 0; r < table.length; r++) {
+            // truncate values beyond far and below near, and re-normalize between 1 and 255
+            double depth = Math.min(r / 1000.0, far) - near;
+            if(!(depth > 0)) depth = 0;
+            double value = 1 + Math.rint(depth * 254.0/(far-near));
+            table[r] = (byte)(value > 255 ? 255 : value);
+        }
+    }
+
+    @Override
+    public void releaseBuffers() {
+        FramePool.shared().returnMat(mDepthMat);
+        mDepthMat = null;
+    }
+
+    // restart the range estimate, carrying on with the current range until the new one
+    // has settled
+    public void recallibrate() {
+        mCalibrator.restart();
+        mRangePending = true;
+        mCallibrated = mCalibrator.hasRange();
+    }
+
+    public boolean isCallibrated() {
+        return mCallibrated;
+    }
+
+    // a range kept from an earlier run, used until the calibrator has settled on its own
+    // (or for good, with static callibration)
+    public void restoreRange(double near, double far) {
+        mNear = near;
+        mFar = far;
+        mRangePending = false;
+        mCallibrated = true;
+    }
+}
@@ -0,0 +1,82 @@
+package com.kmewhort.funar.preprocessors;
+
+import java.nio.ByteBuffer;
+
+// Everything JpegParser finds in a dynamic depth JPEG, from a single parse: the primary
+// image, depth map and (if present) confidence map as slices of the frame buffer, plus the
+// DepthMap metadata. The slices are only valid while the frame buffer is.
+public final class DepthFrame {
+    private final ByteBuffer mPrimaryImage;
+    private final ByteBuffer mDepthMap;
+    private final ByteBuffer mConfidenceMap;
+    private final boolean mRecovered;
+
+    private final String mFormat;
+    private final double mNear;
+    private final double mFar;
+    private final String mUnits;
+    private final String mMeasureType;
+
+    DepthFrame(ByteBuffer primaryImage, ByteBuffer depthMap, ByteBuffer confidenceMap,
+               boolean recovered, String format, double near, double far, String units, String measureType) {
+        mPrimaryImage = primaryImage;
+        mDepthMap = depthMap;
+        mConfidenceMap = confidenceMap;
+        mRecovered = recovered;
+        mFormat = format;
+        mNear = near;
+        mFar = far;
+        mUnits = units;
+        mMeasureType = measureType;
+    }
+
+    // slices are handed out as duplicates so callers can't move each other's positions
+    public ByteBuffer getPrimaryImage() {
+        return mPrimaryImage == null ? null : mPrimaryImage.duplicate();
+    }
+
+    public ByteBuffer getDepthMap() {
+        return mDepthMap.duplicate();
+    }
+
+    public ByteBuffer getConfidenceMap() {
+        return mConfidenceMap == null ? null : mConfidenceMap.duplicate();
+    }
+
+    public boolean hasConfidenceMap() {
+        return mConfidenceMap != null;
+    }
+
+    // whether the images were located from the JPEG markers because the XMP directory was
+    // missing or inconsistent; the metadata may then be missing too
+    public boolean isRecovered() {
+        return mRecovered;
+    }
+
+    // "RangeInverse" or "RangeLinear"
+    public String getFormat() {
+        return mFormat;
+    }
+
+    public boolean isRangeInverse() {
+        return "RangeInverse".equals(mFormat);
+    }
+
+    public double getNear() {
+        return mNear;
+    }
+
+    public double getFar() {
+        return mFar;
+    }
+
+    // "Meters" or "Millimeters"
+    public String getUnits() {
+        return mUnits;
+    }
+
+    // "OpticalAxis" or "OpticRay"
+    public String getMeasureType() {
+        return mMeasureType;
+    }
+}
@@ -1,41 +1,75 @@
 package com.kmewhort.funar.preprocessors;
 
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.ImageFormat;
 import android.media.Image;
 
-import org.opencv.android.Utils;
+import com.kmewhort.funar.processors.FramePool;
+
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.Scalar;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfInt;
+import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 
 import java.nio.ByteBuffer;
-
-import static org.opencv.core.Core.divide;
-import static org.opencv.core.Core.extractChannel;
-import static org.opencv.core.Core.multiply;
-import static org.opencv.core.Core.normalize;
-import static org.opencv.core.Core.subtract;
+import java.util.ArrayList;
+import java.util.List;
 
 public class DepthJpegProcessor extends ImagePreprocessor {
-    protected Bitmap mRgbBitmap;
     protected Mat mDepthMat;
-    protected byte[] mImageData;
+    protected ByteBuffer mImageData;
+    protected byte[] mDepthJpegData;
+    protected Mat mEncodedDepth;
+    // the confidence trailer of the last frame, when asked for
+    protected boolean mConfidenceOutput;
+    protected Mat mConfidenceMat;
+    protected DepthFrame mDepthFrame;
+    // for frames given as a buffer, and the frame last decoded
+    protected JpegFrameContext mOwnFrame;
+    protected JpegFrameContext mDecodedFrame;
+    protected int mDecodedFrameNumber;
+    // whether mDepthMat is that frame's depth; if not, it's an older frame's
+    protected boolean mDepthDecoded;
 
     protected double mNear; // in meters
     protected double mFar;
     protected boolean mCallibrated;
-    protected int mCallibrationFrameCount;
     protected boolean mStaticCallibration;
+    protected boolean mRawOutput;
+    protected DepthRangeCalibrator mCalibrator;
+    // whether a static range still has to be taken from the calibrator
+    protected boolean mRangePending;
+    protected double mLastFrameNear;
+    protected double mLastFrameFar;
+
+    private Mat mDepthLut;
+    private byte[] mDepthLutTable;
+    private double mLutCurNear;
+    private double mLutCurFar;
+    private double mLutCalNear;
+    private double mLutCalFar;
+
+    // histogram of the raw depth codes, fed to the calibrator
+    private List<Mat> mHistImages;
+    private MatOfInt mHistChannels;
+    private MatOfInt mHistSize;
+    private MatOfFloat mHistRanges;
+    private Mat mHistMask;
+    private Mat mHist;
+    private float[] mHistCounts;
+    private double[] mHistDepths;
 
     public DepthJpegProcessor(boolean staticCalliibration) {
         super();
 
         mStaticCallibration = staticCalliibration;
+        mOwnFrame = new JpegFrameContext();
+        mCalibrator = new DepthRangeCalibrator();
+        mNear = 10000;
+        mFar = 0;
         recallibrate();
     }
 
@@ -44,24 +78,49 @@ public class DepthJpegProcessor extends ImagePreprocessor {
     }
 
     public Mat process(Image img) {
-        ByteBuffer buffer = img.getPlanes()[0].getBuffer();
-        mImageData = new byte[buffer.remaining()];
-        buffer.get(mImageData);
+        // parse straight out of the image plane; the decoded Mat doesn't reference it
+        Mat depthMat = process(img.getPlanes()[0].getBuffer());
+        mImageData = null;
+        mDepthFrame = null;
+        mOwnFrame.clear();
         img.close();
 
-        return process(mImageData);
+        return depthMat;
     }
 
     public Mat process(byte[] rawImageData) {
-        mImageData = rawImageData;
-        decodeDepthImage();
-        return mDepthMat;
+        return process(ByteBuffer.wrap(rawImageData));
+    }
+
+    public Mat process(ByteBuffer rawImageData) {
+        return process(mOwnFrame.reset(rawImageData));
     }
 
-    public byte[] getRawImageData() {
+    // decodes the depth of a frame that other decoders may share; the container parse is
+    // shared with them, and asking again for the same frame returns the same Mat. Null if
+    // the frame has no depth that could be decoded, so it isn't taken for a new one.
+    public Mat process(JpegFrameContext frame) {
+        if(frame == mDecodedFrame && frame.getFrameNumber() == mDecodedFrameNumber)
+            return mDepthDecoded ? mDepthMat : null;
+        mDecodedFrame = frame;
+        mDecodedFrameNumber = frame.getFrameNumber();
+
+        mImageData = frame.getImageData();
+        mDepthDecoded = decodeDepthImage(frame);
+        return mDepthDecoded ? mDepthMat : null;
+    }
+
+    public ByteBuffer getRawImageData() {
         return mImageData;
     }
 
+    // the parsed container of the last frame processed from a buffer (primary image,
+    // depth and confidence slices plus metadata); not kept for Images, as their buffers
+    // are released once processed
+    public DepthFrame getDepthFrame() {
+        return mDepthFrame;
+    }
+
     @Override
     public boolean supportsDepthCallibration() {
         return mStaticCallibration;
@@ -87,64 +146,213 @@ public class DepthJpegProcessor extends ImagePreprocessor {
        mFar = depth;
     }
 
-    private void decodeDepthImage() {
-        try {
-            JpegParser parser = new JpegParser(mImageData);
-            ByteBuffer depthJpeg = parser.getDepthMap();
-            Bitmap bitmap = BitmapFactory.decodeByteArray(depthJpeg.array(), depthJpeg.arrayOffset(), depthJpeg.limit());
-            mDepthMat = new Mat(bitmap.getHeight(), bitmap.getWidth(), CvType.CV_8UC3);
-            Utils.bitmapToMat(bitmap, mDepthMat);
-            extractChannel(mDepthMat, mDepthMat, 0);
-
-            if(mCallibrated) {
-                mDepthMat.convertTo(mDepthMat, CvType.CV_32FC1);
-                // unwrap the RangeInverse values to meters
-                // (see https://developer.android.com/training/camera2/Dynamic-depth-v1.0.pdf p. 39)
-                // TODO: check values are still 255 based and not already normalized to 1.0
-                double curNear = parser.getDepthNearValue();
-                double curFar = parser.getDepthFarValue();
-                Core.multiply(mDepthMat, new Scalar(-1.0*(curFar-curNear)/255.0), mDepthMat);
-                Core.add(mDepthMat, new Scalar(curFar), mDepthMat);
-                Core.divide(curFar*curNear, mDepthMat, mDepthMat);
-
-                // renormalize either to the current near/far, or the callibrated one
-                double calFar = mStaticCallibration ? mFar : curFar;
-                double calNear = mStaticCallibration ? mNear : curNear;
-
-                // truncate values exceeding the callibrated far
-                Imgproc.threshold(mDepthMat, mDepthMat, calFar, 0, Imgproc.THRESH_TRUNC);
-
-                // re-normalize between 0 and 255, truncating values below the callibrated min
-                // at the same time
-                Core.subtract(mDepthMat, new Scalar(calNear), mDepthMat);
-                Imgproc.threshold(mDepthMat, mDepthMat, 0, 0, Imgproc.THRESH_TOZERO);
-                Core.multiply(mDepthMat, new Scalar(255.0/(calFar-calNear)), mDepthMat);
-                mDepthMat.convertTo(mDepthMat, CvType.CV_8UC1);
-            } else {
-                // find the min/max distance over 10 frames
-                if(parser.getDepthNearValue() < mNear)
-                    mNear = parser.getDepthNearValue();
-                if(parser.getDepthFarValue() > mFar)
-                    mFar = parser.getDepthFarValue();
-                if(++mCallibrationFrameCount >= 10) {
-                    mCallibrated = true;
-                }
-            }
-        } catch (JpegParser.JpegMarkerNotFound jpegMarkerNotFound) {
-            jpegMarkerNotFound.printStackTrace();
-        } catch (JpegParser.DepthImageNotFound depthImageNotFound) {
-            depthImageNotFound.printStackTrace();
+    // whether the frame's depth was decoded into mDepthMat
+    private boolean decodeDepthImage(JpegFrameContext frame) {
+        JpegParser parser = frame.getParser();
+        if(parser == null)
+            return false;
+        mDepthFrame = frame.getDepthFrame();
+
+        // frames recovered without XMP carry no range; use the last one we saw
+        double curNear = parser.getDepthNearValue();
+        double curFar = parser.getDepthFarValue();
+        if(curFar > curNear) {
+            mLastFrameNear = curNear;
+            mLastFrameFar = curFar;
+        } else if(mLastFrameFar > mLastFrameNear) {
+            curNear = mLastFrameNear;
+            curFar = mLastFrameFar;
+        } else {
+            return false;
+        }
+
+        Mat decoded = decodeGrayJpeg(mDepthFrame.getDepthMap());
+        if(decoded.empty()) {
+            decoded.release();
+            return false;
+        }
+        // the frame goes out through a pooled Mat that stays the same from frame to frame;
+        // the decoded one is only a temporary, filled into it by the copy or lookup below
+        mDepthMat = FramePool.shared().reuseMat(mDepthMat, decoded.rows(), decoded.cols(), CvType.CV_8UC1);
+        if(mConfidenceOutput)
+            decodeConfidence();
+
+        if(mRawOutput) {
+            decoded.copyTo(mDepthMat);
+            decoded.release();
+            return true;
+        }
+
+        // keep the range estimate up to date in the background; until it's settled
+        // after a recallibrate, the previous range carries on being used
+        updateCalibrator(decoded, curNear, curFar);
+        if(mCalibrator.isSettled() && (mRangePending || !mStaticCallibration)) {
+            mNear = mCalibrator.getNear();
+            mFar = mCalibrator.getFar();
+            mRangePending = false;
+            mCallibrated = true;
+        }
+
+        if(mCallibrated) {
+            // renormalize to the callibrated (static or continuously updated) range;
+            // the input is 8 bit, so the whole unwrap/renormalize is a 256 entry lookup
+            Core.LUT(decoded, depthLut(curNear, curFar, mNear, mFar), mDepthMat);
+        } else {
+            decoded.copyTo(mDepthMat);
+        }
+        decoded.release();
+        return true;
+    }
+
+    // the confidence map is optional, and only any use if it lines up with the depth
+    private void decodeConfidence() {
+        if(!mDepthFrame.hasConfidenceMap()) {
+            FramePool.shared().returnMat(mConfidenceMat);
+            mConfidenceMat = null;
+            return;
+        }
+
+        Mat decoded = decodeGrayJpeg(mDepthFrame.getConfidenceMap());
+        if(decoded.width() != mDepthMat.width() || decoded.height() != mDepthMat.height()) {
+            decoded.release();
+            FramePool.shared().returnMat(mConfidenceMat);
+            mConfidenceMat = null;
+            return;
+        }
+        mConfidenceMat = FramePool.shared().reuseMat(mConfidenceMat, decoded.rows(), decoded.cols(), CvType.CV_8UC1);
+        decoded.copyTo(mConfidenceMat);
+        decoded.release();
+    }
+
+    // decode a depth or confidence trailer straight to a single channel Mat, rather than to
+    // an ARGB Bitmap and then extracting one channel of it. OpenCV's Java imdecode has no
+    // destination argument, so the result is a new Mat for the caller to copy out and release.
+    private Mat decodeGrayJpeg(ByteBuffer jpeg) {
+        int length = jpeg.remaining();
+        Mat encoded;
+        if(jpeg.isDirect()) {
+            // wrap the trailer in place; the Mat starts at the buffer's base address
+            encoded = new Mat(1, length, CvType.CV_8UC1, jpeg.slice());
+        } else {
+            if(mDepthJpegData == null || mDepthJpegData.length < length)
+                mDepthJpegData = new byte[length];
+            jpeg.get(mDepthJpegData, 0, length);
+            if(mEncodedDepth == null || mEncodedDepth.cols() < length)
+                mEncodedDepth = new Mat(1, length, CvType.CV_8UC1);
+            encoded = mEncodedDepth.submat(0, 1, 0, length);
+            encoded.put(0, 0, mDepthJpegData, 0, length);
+        }
+
+        Mat decoded = Imgcodecs.imdecode(encoded, Imgcodecs.IMREAD_GRAYSCALE);
+        encoded.release();
+        return decoded;
+    }
+
+    private void updateCalibrator(Mat depth, double curNear, double curFar) {
+        if(mHist == null) {
+            mHistImages = new ArrayList<Mat>(1);
+            mHistImages.add(depth);
+            mHistChannels = new MatOfInt(0);
+            mHistSize = new MatOfInt(256);
+            mHistRanges = new MatOfFloat(0, 256);
+            mHist = new Mat();
+            mHistMask = new Mat();
+            mHistCounts = new float[256];
+            mHistDepths = new double[256];
         }
+        mHistImages.set(0, depth);
+        Imgproc.calcHist(mHistImages, mHistChannels, mHistMask, mHist, mHistSize, mHistRanges);
+        mHist.get(0, 0, mHistCounts);
+
+        for(int i = 0; i < 256; i++)
+            mHistDepths[i] = (curFar*curNear) / (curFar - (curFar-curNear)*i/255.0);
+        mCalibrator.addFrame(mHistCounts, mHistDepths);
     }
 
+    // lookup table from RangeInverse values to depth renormalized to 0-255 between calNear
+    // and calFar; rebuilt only when one of the ranges changes
+    private Mat depthLut(double curNear, double curFar, double calNear, double calFar) {
+        if(mDepthLut != null && curNear == mLutCurNear && curFar == mLutCurFar &&
+                calNear == mLutCalNear && calFar == mLutCalFar)
+            return mDepthLut;
+
+        if(mDepthLutTable == null)
+            mDepthLutTable = new byte[256];
+        depthTable(curNear, curFar, calNear, calFar, mDepthLutTable);
+
+        if(mDepthLut == null)
+            mDepthLut = new Mat(1, 256, CvType.CV_8UC1);
+        mDepthLut.put(0, 0, mDepthLutTable);
+        mLutCurNear = curNear;
+        mLutCurFar = curFar;
+        mLutCalNear = calNear;
+        mLutCalFar = calFar;
+        return mDepthLut;
+    }
+
+    // fills table with the 8 bit depth, renormalized between calNear and calFar, of each
+    // RangeInverse value of a frame with range curNear to curFar; 0 is left for no depth,
+    // so valid depth is 1 to 255
+    static void depthTable(double curNear, double curFar, double calNear, double calFar, byte[] table) {
+        for(int i = 0; i < 256; i++) {
+            // unwrap the RangeInverse value to meters
+            // (see https://developer.android.com/training/camera2/Dynamic-depth-v1.0.pdf p. 39)
+            // TODO: check values are still 255 based and not already normalized to 1.0
+            double depth = (curFar*curNear) / (curFar - (curFar-curNear)*i/255.0);
+
+            // truncate values exceeding the callibrated far, and below the callibrated near,
+            // and re-normalize between 1 and 255
+            depth = Math.min(depth, calFar) - calNear;
+            if(!(depth > 0)) depth = 0;
+            double value = 1 + Math.rint(depth * 254.0/(calFar-calNear));
+            table[i] = (byte)(value > 255 ? 255 : value);
+        }
+    }
+
+    @Override
+    public void releaseBuffers() {
+        FramePool.shared().returnMat(mDepthMat);
+        if(mEncodedDepth != null)
+            mEncodedDepth.release();
+        FramePool.shared().returnMat(mConfidenceMat);
+        mDepthMat = null;
+        mEncodedDepth = null;
+        mConfidenceMat = null;
+    }
+
+    @Override
+    public void setConfidenceOutput(boolean enable) {
+        mConfidenceOutput = enable;
+    }
+
+    @Override
+    public Mat getConfidence() {
+        return mConfidenceOutput ? mConfidenceMat : null;
+    }
+
+    // output the decoded RangeInverse values as they are, without any callibration
+    public void setRawOutput(boolean raw) {
+        mRawOutput = raw;
+    }
+
+    // restart the range estimate; output carries on with the current range, if there is
+    // one, until the new estimate has settled
     public void recallibrate() {
-        mNear = 10000;
-        mFar = 0;
-        mCallibrated = false;
-        mCallibrationFrameCount = 0;
+        mCalibrator.restart();
+        mRangePending = true;
+        mCallibrated = mCalibrator.hasRange();
     }
 
     public boolean isCallibrated() {
         return mCallibrated;
     }
+
+    // a range kept from an earlier run, used until the calibrator has settled on its own
+    // (or for good, with static callibration)
+    public void restoreRange(double near, double far) {
+        mNear = near;
+        mFar = far;
+        mRangePending = false;
+        mCallibrated = true;
+    }
 }
@@ -0,0 +1,105 @@
+package com.kmewhort.funar.preprocessors;
+
+// Streaming estimate of the depth range in view. Every frame's depth histogram is folded
+// into a fixed size histogram of metric depth that decays exponentially, and the range is
+// taken between two percentiles of it, so a few stray pixels or one bad frame can't stretch
+// it. Restarting only clears the history; the last range stays available until enough new
+// frames have been seen to replace it.
+final class DepthRangeCalibrator {
+    private static final int BIN_COUNT = 512;
+    private static final double BIN_SIZE = 0.02; // in meters
+    // weight left on the history each frame; about a ten frame window
+    private static final double DECAY = 0.9;
+    private static final double NEAR_PERCENTILE = 0.02;
+    private static final double FAR_PERCENTILE = 0.98;
+    // frames needed after a restart before the range is updated
+    private static final int SETTLE_FRAME_COUNT = 10;
+
+    private final double[] mBins = new double[BIN_COUNT];
+    private int mFrameCount;
+
+    private boolean mHasRange;
+    private double mNear;
+    private double mFar;
+
+    DepthRangeCalibrator() {
+        restart();
+    }
+
+    // counts[i] pixels at depths[i] meters; each frame carries the same weight whatever
+    // its pixel count
+    void addFrame(float[] counts, double[] depths) {
+        double total = 0;
+        for(int i = 0; i < counts.length; i++)
+            total += counts[i];
+        if(!(total > 0))
+            return;
+
+        for(int i = 0; i < BIN_COUNT; i++)
+            mBins[i] *= DECAY;
+        for(int i = 0; i < counts.length; i++) {
+            if(counts[i] == 0 || !(depths[i] > 0))
+                continue;
+            mBins[binOf(depths[i])] += counts[i] / total;
+        }
+
+        if(++mFrameCount >= SETTLE_FRAME_COUNT)
+            updateRange();
+    }
+
+    // forget the history; the current range is kept until it's been re-estimated
+    void restart() {
+        for(int i = 0; i < BIN_COUNT; i++)
+            mBins[i] = 0;
+        mFrameCount = 0;
+    }
+
+    // whether the range has been (re-)estimated since the last restart
+    boolean isSettled() {
+        return mFrameCount >= SETTLE_FRAME_COUNT && mHasRange;
+    }
+
+    boolean hasRange() {
+        return mHasRange;
+    }
+
+    double getNear() {
+        return mNear;
+    }
+
+    double getFar() {
+        return mFar;
+    }
+
+    private void updateRange() {
+        double total = 0;
+        for(int i = 0; i < BIN_COUNT; i++)
+            total += mBins[i];
+        double nearWeight = total * NEAR_PERCENTILE;
+        double farWeight = total * FAR_PERCENTILE;
+
+        int nearBin = -1;
+        int farBin = -1;
+        double cumulative = 0;
+        for(int i = 0; i < BIN_COUNT; i++) {
+            cumulative += mBins[i];
+            if(nearBin < 0 && cumulative > nearWeight)
+                nearBin = i;
+            if(cumulative >= farWeight) {
+                farBin = i;
+                break;
+            }
+        }
+        if(nearBin < 0 || farBin < 0)
+            return;
+
+        mNear = nearBin * BIN_SIZE;
+        mFar = (farBin + 1) * BIN_SIZE;
+        mHasRange = true;
+    }
+
+    private static int binOf(double depth) {
+        int bin = (int)(depth / BIN_SIZE);
+        return bin < BIN_COUNT ? bin : BIN_COUNT - 1;
+    }
+}
@@ -0,0 +1,418 @@
+package com.kmewhort.funar.preprocessors;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Minimal reader for the few Dynamic Depth XMP properties we actually use
+// (see https://developer.android.com/training/camera2/Dynamic-depth-v1.0.pdf). We only
+// need the Container:Directory items and the DepthMap fields, so rather than building a
+// full XMP DOM this just scans the packet text. Properties may be serialised either as
+// attributes (Item:Length="123") or as elements (<Item:Length>123</Item:Length>).
+class DynamicDepthXmp {
+    static class Item {
+        String mime;
+        String semantic;
+        String dataURI;
+        int length;
+        int padding;
+    }
+
+    private ArrayList<Item> mItems;
+    private String mDepthFormat;
+    private double mDepthNear;
+    private double mDepthFar;
+    private String mDepthUnits;
+    private String mDepthMeasureType;
+    private String mDepthURI;
+    private String mConfidenceURI;
+
+    DynamicDepthXmp() {
+        mItems = new ArrayList<Item>();
+        mRunStarts = new int[64];
+        mRunEnds = new int[64];
+    }
+
+    // may be called once per XMP packet (standard, then extended); later packets only
+    // fill in what they contain
+    void parse(String xmp) {
+        fingerprint(xmp);
+
+        Layout layout = lookupLayout();
+        if(layout != null) {
+            applyLayout(layout, xmp);
+            return;
+        }
+
+        layout = new Layout();
+        parseDirectory(xmp, layout);
+
+        layout.depthFormat = property(xmp, 0, xmp.length(), "DepthMap:Format");
+        layout.depthUnits = property(xmp, 0, xmp.length(), "DepthMap:Units");
+        layout.depthMeasureType = property(xmp, 0, xmp.length(), "DepthMap:MeasureType");
+        layout.depthURI = property(xmp, 0, xmp.length(), "DepthMap:DepthURI");
+        layout.confidenceURI = property(xmp, 0, xmp.length(), "DepthMap:ConfidenceURI");
+        checkText(layout.depthFormat, layout);
+        checkText(layout.depthUnits, layout);
+        checkText(layout.depthMeasureType, layout);
+        checkText(layout.depthURI, layout);
+        checkText(layout.confidenceURI, layout);
+        applyText(layout);
+
+        String value = property(xmp, 0, xmp.length(), "DepthMap:Near");
+        layout.nearRun = valueRun(value, layout);
+        if(value != null)
+            mDepthNear = parseDouble(value, mDepthNear);
+        value = property(xmp, 0, xmp.length(), "DepthMap:Far");
+        layout.farRun = valueRun(value, layout);
+        if(value != null)
+            mDepthFar = parseDouble(value, mDepthFar);
+
+        storeLayout(layout);
+    }
+
+    ArrayList<Item> getItems() {
+        return mItems;
+    }
+
+    String getDepthFormat() {
+        return mDepthFormat;
+    }
+
+    String getDepthUnits() {
+        return mDepthUnits;
+    }
+
+    String getDepthMeasureType() {
+        return mDepthMeasureType;
+    }
+
+    String getDepthURI() {
+        return mDepthURI;
+    }
+
+    String getConfidenceURI() {
+        return mConfidenceURI;
+    }
+
+    double getDepthNear() {
+        return mDepthNear;
+    }
+
+    double getDepthFar() {
+        return mDepthFar;
+    }
+
+    private void parseDirectory(String xmp, Layout layout) {
+        int start = xmp.indexOf("<Container:Directory");
+        if(start < 0) return;
+        int end = xmp.indexOf("</Container:Directory", start);
+        if(end < 0) end = xmp.length();
+
+        // one rdf:li per directory item, in container order
+        ArrayList<Item> items = new ArrayList<Item>();
+        ArrayList<ItemLayout> itemLayouts = new ArrayList<ItemLayout>();
+        int itemStart = xmp.indexOf("<rdf:li", start);
+        while(itemStart >= 0 && itemStart < end) {
+            int itemEnd = xmp.indexOf("<rdf:li", itemStart + 1);
+            if(itemEnd < 0 || itemEnd > end) itemEnd = end;
+
+            Item item = new Item();
+            ItemLayout itemLayout = new ItemLayout();
+            item.mime = property(xmp, itemStart, itemEnd, "Item:Mime");
+            item.semantic = property(xmp, itemStart, itemEnd, "Item:Semantic");
+            item.dataURI = property(xmp, itemStart, itemEnd, "Item:DataURI");
+            String length = property(xmp, itemStart, itemEnd, "Item:Length");
+            itemLayout.lengthRun = valueRun(length, layout);
+            item.length = length == null ? 0 : parseInt(length);
+            String padding = property(xmp, itemStart, itemEnd, "Item:Padding");
+            itemLayout.paddingRun = valueRun(padding, layout);
+            item.padding = padding == null ? 0 : parseInt(padding);
+            items.add(item);
+
+            checkText(item.mime, layout);
+            checkText(item.semantic, layout);
+            checkText(item.dataURI, layout);
+            itemLayout.mime = item.mime;
+            itemLayout.semantic = item.semantic;
+            itemLayout.dataURI = item.dataURI;
+            itemLayouts.add(itemLayout);
+
+            itemStart = itemEnd < end ? itemEnd : -1;
+        }
+        mItems = items;
+        layout.items = itemLayouts.toArray(new ItemLayout[0]);
+    }
+
+    // value of the first attribute or element called name within [from, to), or null;
+    // also leaves the value's position in mValueStart/mValueEnd
+    private String property(String xmp, int from, int to, String name) {
+        int i = xmp.indexOf(name, from);
+        while(i >= 0 && i < to) {
+            int after = i + name.length();
+            char before = i > 0 ? xmp.charAt(i - 1) : ' ';
+            if(after < to) {
+                if (before == '<' && xmp.charAt(after) == '>') {
+                    // element form
+                    int valueEnd = xmp.indexOf('<', after + 1);
+                    if (valueEnd < 0 || valueEnd > to) return null;
+                    return value(xmp, after + 1, valueEnd);
+                } else if (Character.isWhitespace(before)) {
+                    // attribute form, allowing whitespace around the '='
+                    int j = after;
+                    while (j < to && Character.isWhitespace(xmp.charAt(j))) j++;
+                    if (j < to && xmp.charAt(j) == '=') {
+                        j++;
+                        while (j < to && Character.isWhitespace(xmp.charAt(j))) j++;
+                        if (j < to) {
+                            char quote = xmp.charAt(j);
+                            int valueEnd = xmp.indexOf(quote, j + 1);
+                            if (valueEnd < 0 || valueEnd > to) return null;
+                            return value(xmp, j + 1, valueEnd);
+                        }
+                    }
+                }
+            }
+            i = xmp.indexOf(name, after);
+        }
+        return null;
+    }
+
+    private String value(String xmp, int start, int end) {
+        while(start < end && Character.isWhitespace(xmp.charAt(start))) start++;
+        while(end > start && Character.isWhitespace(xmp.charAt(end - 1))) end--;
+        mValueStart = start;
+        mValueEnd = end;
+        return xmp.substring(start, end);
+    }
+
+    // The directory layout, mime types and depth format are the same from frame to frame
+    // for a given camera; only the numbers (lengths, near/far) change. So fingerprint each
+    // packet with its numbers blanked out, and on a match just re-read the numeric fields
+    // by their index among the packet's numeric runs instead of searching for every property.
+    private static class ItemLayout {
+        String mime;
+        String semantic;
+        String dataURI;
+        int lengthRun;
+        int paddingRun;
+    }
+
+    private static class Layout {
+        long fingerprint;
+        int skeletonLength;
+        int runCount;
+        boolean cacheable = true;
+
+        ItemLayout[] items; // null when the packet has no directory
+        String depthFormat;
+        String depthUnits;
+        String depthMeasureType;
+        String depthURI;
+        String confidenceURI;
+        int nearRun;
+        int farRun;
+    }
+
+    private static final int MAX_CACHED_LAYOUTS = 8;
+    private static final HashMap<Long, Layout> sLayouts = new HashMap<Long, Layout>();
+    private static final AtomicLong sLayoutHits = new AtomicLong();
+    private static final AtomicLong sLayoutMisses = new AtomicLong();
+
+    private long mFingerprint;
+    private int mSkeletonLength;
+    private int mRunCount;
+    private int[] mRunStarts;
+    private int[] mRunEnds;
+    private int mValueStart;
+    private int mValueEnd;
+
+    static long getLayoutCacheHits() {
+        return sLayoutHits.get();
+    }
+
+    static long getLayoutCacheMisses() {
+        return sLayoutMisses.get();
+    }
+
+    private static boolean isNumberChar(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F') ||
+                c == '.' || c == '-' || c == '+';
+    }
+
+    // FNV-1a over the packet, with every run of number characters that contains a digit
+    // (decimals, but also hex GUIDs/digests) collapsed to a single placeholder
+    private void fingerprint(String xmp) {
+        long hash = 0xcbf29ce484222325L;
+        int skeletonLength = 0;
+        mRunCount = 0;
+
+        int n = xmp.length();
+        int i = 0;
+        while(i < n) {
+            char c = xmp.charAt(i);
+            if(isNumberChar(c)) {
+                int j = i;
+                boolean hasDigit = false;
+                while(j < n && isNumberChar(xmp.charAt(j))) {
+                    char d = xmp.charAt(j);
+                    if(d >= '0' && d <= '9') hasDigit = true;
+                    j++;
+                }
+                if(hasDigit) {
+                    addRun(i, j);
+                    hash = (hash ^ '#') * 0x100000001b3L;
+                    skeletonLength++;
+                    i = j;
+                    continue;
+                }
+                for(; i < j; i++) {
+                    hash = (hash ^ xmp.charAt(i)) * 0x100000001b3L;
+                    skeletonLength++;
+                }
+                continue;
+            }
+            hash = (hash ^ c) * 0x100000001b3L;
+            skeletonLength++;
+            i++;
+        }
+
+        mFingerprint = hash;
+        mSkeletonLength = skeletonLength;
+    }
+
+    private void addRun(int start, int end) {
+        if(mRunCount == mRunStarts.length) {
+            int[] starts = new int[mRunCount * 2];
+            int[] ends = new int[mRunCount * 2];
+            System.arraycopy(mRunStarts, 0, starts, 0, mRunCount);
+            System.arraycopy(mRunEnds, 0, ends, 0, mRunCount);
+            mRunStarts = starts;
+            mRunEnds = ends;
+        }
+        mRunStarts[mRunCount] = start;
+        mRunEnds[mRunCount] = end;
+        mRunCount++;
+    }
+
+    // index of the numeric run holding exactly the value last returned by property(), or -1
+    // if there was no value; values that aren't a single run make the layout uncacheable
+    private int valueRun(String value, Layout layout) {
+        if(value == null)
+            return -1;
+
+        int lo = 0;
+        int hi = mRunCount - 1;
+        while(lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if(mRunStarts[mid] < mValueStart) lo = mid + 1;
+            else if(mRunStarts[mid] > mValueStart) hi = mid - 1;
+            else {
+                if(mRunEnds[mid] == mValueEnd)
+                    return mid;
+                break;
+            }
+        }
+        layout.cacheable = false;
+        return -1;
+    }
+
+    // text values are reused as-is on a layout hit, so they mustn't contain digits the
+    // fingerprint ignores
+    private void checkText(String value, Layout layout) {
+        if(value == null)
+            return;
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if(c >= '0' && c <= '9') {
+                layout.cacheable = false;
+                return;
+            }
+        }
+    }
+
+    private String run(String xmp, int index) {
+        return xmp.substring(mRunStarts[index], mRunEnds[index]);
+    }
+
+    private Layout lookupLayout() {
+        synchronized (DynamicDepthXmp.class) {
+            Layout layout = sLayouts.get(mFingerprint);
+            if (layout != null && layout.skeletonLength == mSkeletonLength && layout.runCount == mRunCount) {
+                sLayoutHits.incrementAndGet();
+                return layout;
+            }
+            sLayoutMisses.incrementAndGet();
+            return null;
+        }
+    }
+
+    private void storeLayout(Layout layout) {
+        if(!layout.cacheable)
+            return;
+
+        layout.fingerprint = mFingerprint;
+        layout.skeletonLength = mSkeletonLength;
+        layout.runCount = mRunCount;
+        synchronized (DynamicDepthXmp.class) {
+            if (sLayouts.size() >= MAX_CACHED_LAYOUTS)
+                sLayouts.clear();
+            sLayouts.put(layout.fingerprint, layout);
+        }
+    }
+
+    private void applyLayout(Layout layout, String xmp) {
+        if(layout.items != null) {
+            ArrayList<Item> items = new ArrayList<Item>(layout.items.length);
+            for (ItemLayout itemLayout : layout.items) {
+                Item item = new Item();
+                item.mime = itemLayout.mime;
+                item.semantic = itemLayout.semantic;
+                item.dataURI = itemLayout.dataURI;
+                if (itemLayout.lengthRun >= 0)
+                    item.length = parseInt(run(xmp, itemLayout.lengthRun));
+                if (itemLayout.paddingRun >= 0)
+                    item.padding = parseInt(run(xmp, itemLayout.paddingRun));
+                items.add(item);
+            }
+            mItems = items;
+        }
+
+        applyText(layout);
+        if(layout.nearRun >= 0)
+            mDepthNear = parseDouble(run(xmp, layout.nearRun), mDepthNear);
+        if(layout.farRun >= 0)
+            mDepthFar = parseDouble(run(xmp, layout.farRun), mDepthFar);
+    }
+
+    private void applyText(Layout layout) {
+        if(layout.depthFormat != null)
+            mDepthFormat = layout.depthFormat;
+        if(layout.depthUnits != null)
+            mDepthUnits = layout.depthUnits;
+        if(layout.depthMeasureType != null)
+            mDepthMeasureType = layout.depthMeasureType;
+        if(layout.depthURI != null)
+            mDepthURI = layout.depthURI;
+        if(layout.confidenceURI != null)
+            mConfidenceURI = layout.confidenceURI;
+    }
+
+    // a malformed length or padding comes out as -1, which the parser rejects, so the
+    // trailers are found from the markers instead
+    private static int parseInt(String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static double parseDouble(String value, double fallback) {
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.kmewhort.funar.preprocessors;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+
+import java.util.Arrays;
+
+// Structured light callibration of the projection. The projector shows all white, all
+// black, then the bits of a Gray code of the column and of the row as stripes; from the
+// camera frames of each, every camera pixel the projection lands on decodes which
+// projector stripe column and row it sees (against its own white/black midpoint, so room
+// light doesn't matter). A homography fitted from projector to camera over those pixels
+// gives the corners of the projection in the camera image. Gray code, as neighbouring
+// stripes then differ by one bit, so a pixel on a stripe edge is at most one stripe out.
+final class GrayCodeCalibrator {
+    private static final int WHITE = 0;
+    private static final int BLACK = 1;
+    // the white/black difference a camera pixel needs for its bits to be trusted
+    private static final int MIN_CONTRAST = 20;
+    // only every SAMPLE_STRIDE'th pixel each way goes into the fit
+    private static final int SAMPLE_STRIDE = 4;
+    private static final int MIN_SAMPLES = 64;
+
+    private final int mBits;
+    private int mWidth;
+    private int mHeight;
+    private byte[] mWhite;
+    private byte[] mBlack;
+    private byte[] mFrame;
+    private int[] mColumnCodes;
+    private int[] mRowCodes;
+
+    GrayCodeCalibrator(int bits) {
+        mBits = bits;
+    }
+
+    // white, black, then a pattern per bit of the column and the row
+    int getPatternCount() {
+        return 2 + mBits * 2;
+    }
+
+    // draws pattern index into output, which is the full projected frame
+    void drawPattern(int index, Mat output) {
+        int width = output.width();
+        int height = output.height();
+        int channels = output.channels();
+        byte[] row = new byte[width * channels];
+
+        if(index == WHITE || index == BLACK) {
+            byte value = index == WHITE ? (byte)255 : 0;
+            for(int i = 0; i < row.length; i++)
+                row[i] = value;
+            for(int y = 0; y < height; y++)
+                output.put(y, 0, row);
+            return;
+        }
+
+        int bit = (index - 2) % mBits;
+        boolean columns = index - 2 < mBits;
+        if(columns) {
+            for(int x = 0; x < width; x++) {
+                byte value = isLit(x, width, bit) ? (byte)255 : 0;
+                for(int c = 0; c < channels; c++)
+                    row[x * channels + c] = value;
+            }
+            for(int y = 0; y < height; y++)
+                output.put(y, 0, row);
+        } else {
+            for(int y = 0; y < height; y++) {
+                byte value = isLit(y, height, bit) ? (byte)255 : 0;
+                for(int i = 0; i < row.length; i++)
+                    row[i] = value;
+                output.put(y, 0, row);
+            }
+        }
+    }
+
+    // whether the stripe at position of size is lit for bit (most significant first)
+    private boolean isLit(int position, int size, int bit) {
+        int stripe = (int)((long)position * (1 << mBits) / size);
+        int gray = stripe ^ (stripe >> 1);
+        return ((gray >> (mBits - 1 - bit)) & 1) != 0;
+    }
+
+    // the camera's 8 bit brightness while pattern index was shown
+    void addFrame(int index, Mat gray) {
+        if(gray.width() != mWidth || gray.height() != mHeight || mWhite == null) {
+            mWidth = gray.width();
+            mHeight = gray.height();
+            int size = mWidth * mHeight;
+            mWhite = new byte[size];
+            mBlack = new byte[size];
+            mFrame = new byte[size];
+            mColumnCodes = new int[size];
+            mRowCodes = new int[size];
+        }
+
+        if(index == WHITE) {
+            gray.get(0, 0, mWhite);
+            for(int i = 0; i < mColumnCodes.length; i++) {
+                mColumnCodes[i] = 0;
+                mRowCodes[i] = 0;
+            }
+            return;
+        }
+        if(index == BLACK) {
+            gray.get(0, 0, mBlack);
+            return;
+        }
+
+        gray.get(0, 0, mFrame);
+        int[] codes = index - 2 < mBits ? mColumnCodes : mRowCodes;
+        for(int i = 0; i < mFrame.length; i++) {
+            int threshold = ((mWhite[i] & 0xff) + (mBlack[i] & 0xff)) / 2;
+            codes[i] = (codes[i] << 1) | ((mFrame[i] & 0xff) > threshold ? 1 : 0);
+        }
+    }
+
+    // the corners of the projection in camera pixels (top left, top right, bottom right,
+    // bottom left), or null if too little of it could be decoded
+    MatOfPoint2f solve() {
+        if(mWhite == null)
+            return null;
+
+        int stripes = 1 << mBits;
+        int capacity = (mWidth / SAMPLE_STRIDE + 1) * (mHeight / SAMPLE_STRIDE + 1);
+        Point[] projector = new Point[capacity];
+        Point[] camera = new Point[capacity];
+        int count = 0;
+        for(int y = 0; y < mHeight; y += SAMPLE_STRIDE) {
+            for(int x = 0; x < mWidth; x += SAMPLE_STRIDE) {
+                int i = y * mWidth + x;
+                if((mWhite[i] & 0xff) - (mBlack[i] & 0xff) < MIN_CONTRAST)
+                    continue;
+                // stripe centres, with the projection spanning 0-1 each way
+                projector[count] = new Point(
+                        (grayToBinary(mColumnCodes[i]) + 0.5) / stripes,
+                        (grayToBinary(mRowCodes[i]) + 0.5) / stripes);
+                camera[count] = new Point(x, y);
+                count++;
+            }
+        }
+        if(count < MIN_SAMPLES)
+            return null;
+
+        MatOfPoint2f src = new MatOfPoint2f(Arrays.copyOf(projector, count));
+        MatOfPoint2f dst = new MatOfPoint2f(Arrays.copyOf(camera, count));
+        // every pixel of a stripe is taken to be at its centre, so the residuals are up to
+        // half a stripe wide; least median fits that without needing a threshold for it,
+        // and still drops the misdecoded pixels
+        Mat homography = Calib3d.findHomography(src, dst, Calib3d.LMEDS);
+        src.release();
+        dst.release();
+        if(homography.empty())
+            return null;
+
+        MatOfPoint2f corners = new MatOfPoint2f(
+                new Point(0, 0), new Point(1, 0), new Point(1, 1), new Point(0, 1));
+        MatOfPoint2f quad = new MatOfPoint2f();
+        Core.perspectiveTransform(corners, quad, homography);
+        corners.release();
+        homography.release();
+        return quad;
+    }
+
+    private static int grayToBinary(int gray) {
+        int binary = gray;
+        for(int shift = 1; shift < 32; shift <<= 1)
+            binary ^= binary >> shift;
+        return binary;
+    }
+}
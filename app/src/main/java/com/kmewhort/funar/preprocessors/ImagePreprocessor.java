@@ -37,6 +37,14 @@ public abstract class ImagePreprocessor extends ImageProcessor {
         return mAutoCallibrate;
     }
 
+    // callibrate from projected structured light patterns, where supported
+    public void setStructuredLightCallibration(boolean structuredLight) {
+    }
+
+    public boolean getStructuredLightCallibration() {
+        return false;
+    }
+
     public MatOfPoint2f getCallibration() {
         return mCallibration;
     }
@@ -45,6 +53,26 @@ public abstract class ImagePreprocessor extends ImageProcessor {
         mCallibration = callib;
     }
 
+    // where to keep the callibration between runs; restored from straight away if there's
+    // one stored
+    public void setCallibrationStore(CallibrationStore store) {
+    }
+
+    // have the depth's per pixel confidence kept along with it, where the input has one
+    public void setConfidenceOutput(boolean enable) {
+    }
+
+    // 8 bit confidence (255 being the most sure) lined up with the last output, or null
+    public Mat getConfidence() {
+        return null;
+    }
+
+    // whether the final output of this frame should have a white border drawn around it,
+    // for the camera to find the projection's corners by
+    public boolean needsOutputBorder() {
+        return false;
+    }
+
     public boolean supportsDepthCallibration() {
         return false;
     }
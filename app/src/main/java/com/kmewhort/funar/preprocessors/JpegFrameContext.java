@@ -0,0 +1,77 @@
+package com.kmewhort.funar.preprocessors;
+
+import java.nio.ByteBuffer;
+
+// One DEPTH_JPEG frame on its way through the decoders. The container is parsed the first
+// time a decoder asks for it, and the parse is shared with the rest; each decoder also
+// remembers which frame it last decoded, so asking again in the same frame costs nothing.
+// Reused from frame to frame through reset(); only valid while the frame buffer is.
+public final class JpegFrameContext {
+    private ByteBuffer mImageData;
+    private int mFrameNumber;
+    private JpegParser mParser;
+    private boolean mParsed;
+    private boolean mParseFailed;
+
+    // starts a new frame
+    public JpegFrameContext reset(ByteBuffer imageData) {
+        mImageData = imageData;
+        mFrameNumber++;
+        mParser = null;
+        mParsed = false;
+        mParseFailed = false;
+        return this;
+    }
+
+    // drop the frame buffer, e.g. once its Image is closed
+    public void clear() {
+        reset(null);
+    }
+
+    // the whole frame, primary image first; a duplicate, so decoders can't move each
+    // other's positions
+    public ByteBuffer getImageData() {
+        return mImageData == null ? null : mImageData.duplicate();
+    }
+
+    // changes with every reset(), for decoders to tell whether they already have this frame
+    public int getFrameNumber() {
+        return mFrameNumber;
+    }
+
+    // the parsed container, or null if the frame has no depth we can find or has been
+    // cleared
+    public JpegParser getParser() {
+        if(mImageData == null)
+            return null;
+        if(mParsed || mParseFailed)
+            return mParser;
+
+        try {
+            mParser = new JpegParser(mImageData);
+            mParser.parse();
+            mParsed = true;
+        } catch (JpegParser.JpegMarkerNotFound jpegMarkerNotFound) {
+            jpegMarkerNotFound.printStackTrace();
+            mParser = null;
+            mParseFailed = true;
+        } catch (JpegParser.DepthImageNotFound depthImageNotFound) {
+            depthImageNotFound.printStackTrace();
+            mParser = null;
+            mParseFailed = true;
+        }
+        return mParser;
+    }
+
+    public DepthFrame getDepthFrame() {
+        JpegParser parser = getParser();
+        if(parser == null)
+            return null;
+        try {
+            return parser.parse();
+        } catch (JpegParser.JpegMarkerNotFound | JpegParser.DepthImageNotFound e) {
+            // already parsed successfully, so can't happen
+            return null;
+        }
+    }
+}
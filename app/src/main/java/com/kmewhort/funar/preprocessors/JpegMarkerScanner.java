@@ -0,0 +1,131 @@
+package com.kmewhort.funar.preprocessors;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+// Finds the concatenated JPEGs (primary image plus trailers) in a dynamic depth file from
+// the JPEG structure alone, for when the XMP directory is missing or its lengths don't
+// line up. Each image is walked segment by segment using the length fields; only the
+// entropy-coded scan data has to be searched for the next marker, which is done a long
+// word at a time.
+final class JpegMarkerScanner {
+    private static final int MARKER = 0xff;
+    private static final int SOI = 0xd8;
+    private static final int EOI = 0xd9;
+    private static final int SOS = 0xda;
+    private static final int TEM = 0x01;
+    private static final int RST0 = 0xd0;
+    private static final int RST7 = 0xd7;
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private JpegMarkerScanner() { }
+
+    // {start, end (exclusive)} of each complete JPEG found, in file order
+    static ArrayList<int[]> findImages(ByteBuffer data) {
+        // little endian so the lowest set bit of a match word is the lowest address
+        ByteBuffer buffer = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int limit = buffer.limit();
+
+        ArrayList<int[]> images = new ArrayList<int[]>();
+        int pos = 0;
+        while(pos < limit) {
+            int start = findStartOfImage(buffer, pos, limit);
+            if(start < 0)
+                break;
+
+            int end = findEndOfImage(buffer, start, limit);
+            if(end < 0) {
+                // not a real image (or a truncated one); look past this SOI
+                pos = start + 2;
+                continue;
+            }
+
+            images.add(new int[]{start, end});
+            pos = end;
+        }
+        return images;
+    }
+
+    private static int findStartOfImage(ByteBuffer buffer, int from, int limit) {
+        int i = indexOfMarker(buffer, from, limit);
+        while(i >= 0 && i + 1 < limit) {
+            if((buffer.get(i + 1) & 0xff) == SOI)
+                return i;
+            i = indexOfMarker(buffer, i + 1, limit);
+        }
+        return -1;
+    }
+
+    // walks the segments from the SOI at start; returns the index just past the EOI
+    private static int findEndOfImage(ByteBuffer buffer, int start, int limit) {
+        int pos = start + 2;
+        while(pos + 1 < limit) {
+            if((buffer.get(pos) & 0xff) != MARKER)
+                return -1;
+
+            int marker = buffer.get(pos + 1) & 0xff;
+            if(marker == MARKER) {
+                // fill byte
+                pos++;
+                continue;
+            }
+            if(marker == EOI)
+                return pos + 2;
+            if(marker == SOI)
+                return -1;
+            if(marker == TEM || (marker >= RST0 && marker <= RST7)) {
+                pos += 2;
+                continue;
+            }
+
+            if(pos + 4 > limit)
+                return -1;
+            int length = ((buffer.get(pos + 2) & 0xff) << 8) | (buffer.get(pos + 3) & 0xff);
+            if(length < 2)
+                return -1;
+            pos += 2 + length;
+
+            if(marker == SOS) {
+                pos = skipEntropyCodedData(buffer, pos, limit);
+                if(pos < 0)
+                    return -1;
+            }
+        }
+        return -1;
+    }
+
+    // scan data can only contain 0xff as a stuffed 0xff00 or as a restart marker, so the
+    // first other 0xffxx is the next segment
+    private static int skipEntropyCodedData(ByteBuffer buffer, int from, int limit) {
+        int i = indexOfMarker(buffer, from, limit);
+        while(i >= 0 && i + 1 < limit) {
+            int next = buffer.get(i + 1) & 0xff;
+            if(next != 0 && next != MARKER && (next < RST0 || next > RST7))
+                return i;
+            i = indexOfMarker(buffer, i + 1, limit);
+        }
+        return -1;
+    }
+
+    // index of the next 0xff byte in [from, limit), or -1
+    private static int indexOfMarker(ByteBuffer buffer, int from, int limit) {
+        int i = from;
+        while(i + 8 <= limit) {
+            // 0xff bytes become zero bytes under ~, which the usual SWAR test picks out;
+            // false positives can only sit above (i.e. after) a true match
+            long inverted = ~buffer.getLong(i);
+            long found = (inverted - ONES) & ~inverted & HIGHS;
+            if(found != 0)
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            i += 8;
+        }
+        for(; i < limit; i++) {
+            if((buffer.get(i) & 0xff) == MARKER)
+                return i;
+        }
+        return -1;
+    }
+}
@@ -2,23 +2,10 @@ package com.kmewhort.funar.preprocessors;
 
 import android.util.Log;
 
-import com.adobe.internal.xmp.XMPException;
-import com.adobe.internal.xmp.XMPIterator;
-import com.adobe.internal.xmp.XMPMeta;
-import com.adobe.internal.xmp.properties.XMPPropertyInfo;
-import com.drew.imaging.ImageMetadataReader;
-import com.drew.imaging.ImageProcessingException;
-import com.drew.metadata.Metadata;
-import com.drew.metadata.xmp.XmpDirectory;
-
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class JpegParser {
     private static final String TAG = "JpegParser";
@@ -31,125 +18,187 @@ public class JpegParser {
     public class DepthImageNotFound extends Exception {}
 
     public JpegParser(byte[] imageData) {
-        mImageData = imageData;
+        this(ByteBuffer.wrap(imageData));
     }
 
-    public ByteBuffer getDepthMap() throws JpegMarkerNotFound, DepthImageNotFound {
-        parseXmpTrailerMetadata();
+    // parses in place over the remaining bytes of the buffer (heap or direct, e.g. an Image
+    // plane), which must stay valid for as long as the parser and its slices are used
+    public JpegParser(ByteBuffer imageData) {
+        mImageData = imageData.asReadOnlyBuffer().slice();
+    }
+
+    // parses the container once; later calls return the same frame
+    public DepthFrame parse() throws JpegMarkerNotFound, DepthImageNotFound {
+        if(mFrame != null)
+            return mFrame;
+
+        try {
+            parseXmpTrailerMetadata();
+            mFrame = buildFrame(false);
+        } catch (JpegMarkerNotFound | DepthImageNotFound e) {
+            // XMP missing, or its lengths don't match the file (e.g. after a firmware
+            // update); fall back to finding the images from the JPEG markers themselves
+            if(sRecoveredFrameCount.getAndIncrement() == 0)
+                Log.w(TAG, "Locating depth trailers from JPEG markers: " + e.getMessage());
+            recoverTrailersFromMarkers();
+            mFrame = buildFrame(true);
+        }
+        return mFrame;
+    }
+
+    private DepthFrame buildFrame(boolean recovered) throws DepthImageNotFound {
+        String depthURI = depthURI();
+        String confidenceURI = confidenceURI();
 
+        ByteBuffer primaryImage = null;
+        ByteBuffer depthMap = null;
+        ByteBuffer confidenceMap = null;
         for(int i = 0; i < mTrailers.size(); i++) {
             Trailer t = mTrailers.get(i);
-            if(t.dataURI.equals("android/depthmap")) {
-                return ByteBuffer.wrap(mImageData, t.start, t.size).slice();
+            if(depthURI.equals(t.dataURI)) {
+                depthMap = slice(t.start, t.size);
+            } else if(confidenceURI.equals(t.dataURI)) {
+                confidenceMap = slice(t.start, t.size);
+            } else if(i == 0 || "Primary".equals(t.semantic)) {
+                // the primary image is the start of the file, up to the first trailer
+                primaryImage = slice(0, t.end);
             }
         }
 
-        throw new DepthImageNotFound();
+        if(depthMap == null)
+            throw new DepthImageNotFound();
+
+        return new DepthFrame(primaryImage, depthMap, confidenceMap, recovered,
+                mDepthFormat, mDepthNearValue, mDepthFarValue, mDepthUnits, mDepthMeasureType);
+    }
+
+    private String depthURI() {
+        return mDepthURI != null ? mDepthURI : "android/depthmap";
+    }
+
+    private String confidenceURI() {
+        return mConfidenceURI != null ? mConfidenceURI : "android/confidencemap";
+    }
+
+    public ByteBuffer getDepthMap() throws JpegMarkerNotFound, DepthImageNotFound {
+        return parse().getDepthMap();
     }
 
     public double getDepthNearValue() {
-        if(!mDepthFormat.equals("RangeInverse")) return 0.0;
+        if(!"RangeInverse".equals(mDepthFormat)) return 0.0;
         return mDepthNearValue;
     }
 
     public double getDepthFarValue() {
-        if(!mDepthFormat.equals("RangeInverse")) return 0.0;
+        if(!"RangeInverse".equals(mDepthFormat)) return 0.0;
         return mDepthFarValue;
     }
 
+    // XMP layout cache statistics, for checking the fast path is taken under sustained capture
+    public static long getLayoutCacheHits() {
+        return DynamicDepthXmp.getLayoutCacheHits();
+    }
+
+    public static long getLayoutCacheMisses() {
+        return DynamicDepthXmp.getLayoutCacheMisses();
+    }
+
+    // frames whose trailers had to be located from the JPEG markers
+    public static long getRecoveredFrameCount() {
+        return sRecoveredFrameCount.get();
+    }
+
+    // frames are parsed on the camera thread and counted from anywhere
+    private static final AtomicLong sRecoveredFrameCount = new AtomicLong();
+
     private static final byte JPEG_MARKER = (byte)(Integer.parseInt("ff",16) & 0xff);
     private static final byte JPEG_START = (byte)(Integer.parseInt("d8",16) & 0xff);
     private static final byte JPEG_END = (byte)(Integer.parseInt("d9",16) & 0xff);
 
-    private byte[] mImageData;
+    private ByteBuffer mImageData;
     private class Trailer {
         String dataURI;
         String mime;
+        String semantic;
         int size;
         int start;
         int end; // exclusive
+        int padding;
     }
     private ArrayList<Trailer> mTrailers;
 
     private double mDepthNearValue;
     private double mDepthFarValue;
     private String mDepthFormat;
+    private String mDepthUnits;
+    private String mDepthMeasureType;
+    private String mDepthURI;
+    private String mConfidenceURI;
+    private DepthFrame mFrame;
+
+    private static final byte JPEG_APP1 = (byte)0xe1;
+    private static final byte JPEG_SOS = (byte)0xda;
+    private static final byte[] XMP_HEADER =
+            "http://ns.adobe.com/xap/1.0/\0".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EXTENDED_XMP_HEADER =
+            "http://ns.adobe.com/xmp/extension/\0".getBytes(StandardCharsets.US_ASCII);
+    // extended XMP chunks carry a 32 byte GUID, the full length and the chunk offset
+    private static final int EXTENDED_XMP_CHUNK_HEADER = 32 + 4 + 4;
+
+    private ByteBuffer mXmp;
+    private byte[] mExtendedXmp;
 
     private void parseXmpTrailerMetadata() throws JpegMarkerNotFound {
         mTrailers = new ArrayList<Trailer>();
 
-        Metadata metadata = getExif();
-        Collection<XmpDirectory> xmpDirectories = metadata.getDirectoriesOfType(XmpDirectory.class);
-        for (XmpDirectory xmpDirectory : xmpDirectories) {
-            XMPMeta xmpMeta = xmpDirectory.getXMPMeta();
-            XMPIterator iterator = null;
-            try {
-                iterator = xmpMeta.iterator();
-            } catch (XMPException e) {
-                e.printStackTrace();
-            }
+        findXmpSegments();
 
-            Pattern trailerItemPattern = Pattern.compile("\\/Container\\:Directory\\[(\\d+)\\]\\/Item\\:(.*)");
-            Pattern depthMapNearPattern = Pattern.compile("\\/DepthMap\\:Near");
-            Pattern depthMapFarPattern = Pattern.compile("\\/DepthMap\\:Far");
-            Pattern depthMapFormatPattern = Pattern.compile("\\/DepthMap\\:Format");
-
-            while (iterator.hasNext()) {
-                XMPPropertyInfo xmpPropertyInfo = (XMPPropertyInfo)iterator.next();
-                String path = xmpPropertyInfo.getPath();
-                if(path == null) continue;
-
-                Log.e(TAG, path + ":" + xmpPropertyInfo.getValue());
-
-                Matcher matcher = trailerItemPattern.matcher(path);
-                if(matcher.find()) {
-                    int index = Integer.parseInt(matcher.group(1))-1;
-                    String key = matcher.group(2);
-                    String value = xmpPropertyInfo.getValue();
-
-                    Trailer t = null;
-                    if(index > (mTrailers.size()-1)) {
-                        t = new Trailer();
-                        mTrailers.add(t);
-                    } else {
-                        t = mTrailers.get(index);
-                    }
-
-                    switch(key) {
-                        case "Length":
-                            t.size = Integer.parseInt(value);
-                            break;
-                        case "DataURI":
-                            t.dataURI = value;
-                            break;
-                        case "Mime":
-                            t.mime = value;
-                            break;
-                    }
-                } else if(depthMapNearPattern.matcher(path).find()) {
-                    mDepthNearValue = Double.parseDouble(xmpPropertyInfo.getValue());
-                } else if(depthMapFarPattern.matcher(path).find()) {
-                    mDepthFarValue = Double.parseDouble(xmpPropertyInfo.getValue());
-                } else if(depthMapFormatPattern.matcher(path).find()) {
-                    mDepthFormat = xmpPropertyInfo.getValue();
-                }
-            }
+        DynamicDepthXmp xmp = new DynamicDepthXmp();
+        if(mXmp != null) {
+            // only the (small) XMP packet is copied out of the frame
+            byte[] xmpData = new byte[mXmp.remaining()];
+            mXmp.get(xmpData);
+            xmp.parse(new String(xmpData, StandardCharsets.UTF_8));
+        }
+        if(mExtendedXmp != null)
+            xmp.parse(new String(mExtendedXmp, StandardCharsets.UTF_8));
+
+        for(DynamicDepthXmp.Item item : xmp.getItems()) {
+            Trailer t = new Trailer();
+            t.dataURI = item.dataURI;
+            t.mime = item.mime;
+            t.semantic = item.semantic;
+            t.size = item.length;
+            t.padding = item.padding;
+            mTrailers.add(t);
         }
+        mDepthNearValue = xmp.getDepthNear();
+        mDepthFarValue = xmp.getDepthFar();
+        mDepthFormat = xmp.getDepthFormat();
+        mDepthUnits = xmp.getDepthUnits();
+        mDepthMeasureType = xmp.getDepthMeasureType();
+        mDepthURI = xmp.getDepthURI();
+        mConfidenceURI = xmp.getConfidenceURI();
 
         // calculate start and end indexes by iterating back from the end
-        int curPos = mImageData.length;
+        int curPos = mImageData.limit();
         for(int i = mTrailers.size()-1; i >= 0; i--) {
             Trailer t = mTrailers.get(i);
-            t.end = curPos;
-            t.start = curPos-t.size;
+            // missing or wrong XMP lengths; leave it to the marker scan (only the primary
+            // image can go without a length, as it runs from the start of the file)
+            if(t.padding < 0 || t.size < 0 || (i > 0 && t.size < 4) ||
+                    (long)t.size + t.padding > curPos - 1)
+                throw new JpegMarkerNotFound("Bad length for trailer " + i);
+            t.end = curPos - t.padding;
+            t.start = t.end-t.size;
             curPos = t.start;
 
             // verify jpeg position markers
-            if(t.mime.equals("image/jpeg")) {
-                if (mImageData[t.start] != JPEG_MARKER || mImageData[t.start + 1] != JPEG_START) {
+            if("image/jpeg".equals(t.mime)) {
+                if (t.start < 1 || t.end < 2 || t.start + 2 > mImageData.limit() || mImageData.get(t.start) != JPEG_MARKER || mImageData.get(t.start + 1) != JPEG_START) {
                     throw new JpegMarkerNotFound("No start of file marker");
                 }
-                if (mImageData[t.end - 2] != JPEG_MARKER || mImageData[t.start - 1] != JPEG_END) {
+                if (mImageData.get(t.end - 2) != JPEG_MARKER || mImageData.get(t.start - 1) != JPEG_END) {
                     throw new JpegMarkerNotFound("No end of file marker");
 
                 }
@@ -157,36 +206,125 @@ public class JpegParser {
         }
     }
 
-    private Metadata getExif() {
-        Metadata metadata = null;
-        try {
-            metadata = ImageMetadataReader.readMetadata(
-                    new BufferedInputStream(new ByteArrayInputStream(mImageData)),
-                    mImageData.length);
-        } catch (ImageProcessingException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return metadata;
-    }
-
-    // don't actually need this, but leaving it in...helpful for
-    // debugging if Google changes the standard again
-    private ArrayList<Integer> mStartMarkers;
-    private ArrayList<Integer> mEndMarkers;
-    private void findStartAndEndMarkers() {
-        mStartMarkers = new ArrayList<>();
-        mEndMarkers = new ArrayList<>();
-
-        for(int i = 0; i < mImageData.length; i++) {
-            if(mImageData[i] == JPEG_MARKER) {
-                if(mImageData[i+1] == JPEG_START) {
-                    mStartMarkers.add(i);
-                } else if(mImageData[i+1] == JPEG_END) {
-                    mEndMarkers.add(i);
+    // walk the primary image's marker segments by their length fields, picking out the
+    // APP1 XMP payloads; everything from the start of scan on (the bulk of the file) is
+    // never touched
+    private void findXmpSegments() throws JpegMarkerNotFound {
+        mXmp = null;
+        mExtendedXmp = null;
+
+        if(mImageData.limit() < 4 || mImageData.get(0) != JPEG_MARKER || mImageData.get(1) != JPEG_START)
+            throw new JpegMarkerNotFound("No start of file marker");
+
+        int pos = 2;
+        while(pos + 4 <= mImageData.limit()) {
+            if(mImageData.get(pos) != JPEG_MARKER)
+                throw new JpegMarkerNotFound("Expected segment marker at " + pos);
+
+            byte marker = mImageData.get(pos+1);
+            if(marker == JPEG_MARKER) {
+                // fill byte
+                pos++;
+                continue;
+            }
+            if(marker == JPEG_SOS || marker == JPEG_END)
+                break;
+
+            int segmentLength = ((mImageData.get(pos+2) & 0xff) << 8) | (mImageData.get(pos+3) & 0xff);
+            int payloadStart = pos + 4;
+            int payloadLength = segmentLength - 2;
+            if(payloadLength < 0 || payloadStart + payloadLength > mImageData.limit())
+                throw new JpegMarkerNotFound("Truncated segment at " + pos);
+
+            if(marker == JPEG_APP1) {
+                if(startsWith(payloadStart, payloadLength, XMP_HEADER)) {
+                    mXmp = slice(payloadStart + XMP_HEADER.length,
+                            payloadLength - XMP_HEADER.length);
+                } else if(startsWith(payloadStart, payloadLength, EXTENDED_XMP_HEADER)) {
+                    addExtendedXmpChunk(payloadStart + EXTENDED_XMP_HEADER.length,
+                            payloadLength - EXTENDED_XMP_HEADER.length);
                 }
             }
+
+            pos += 2 + segmentLength;
+        }
+    }
+
+    private void addExtendedXmpChunk(int start, int length) {
+        if(length < EXTENDED_XMP_CHUNK_HEADER)
+            return;
+
+        int fullLength = readInt(start + 32);
+        int offset = readInt(start + 36);
+        int chunkLength = length - EXTENDED_XMP_CHUNK_HEADER;
+        // the chunks are all in this file, so a longer packet is a corrupt header
+        if(fullLength < 0 || fullLength > mImageData.limit() || offset < 0 ||
+                offset > fullLength - chunkLength)
+            return;
+
+        if(mExtendedXmp == null || mExtendedXmp.length != fullLength)
+            mExtendedXmp = new byte[fullLength];
+        ByteBuffer chunk = mImageData.duplicate();
+        chunk.position(start + EXTENDED_XMP_CHUNK_HEADER);
+        chunk.get(mExtendedXmp, offset, chunkLength);
+    }
+
+    private ByteBuffer slice(int start, int length) {
+        ByteBuffer slice = mImageData.duplicate();
+        slice.position(start);
+        slice.limit(start + length);
+        return slice.slice();
+    }
+
+    private boolean startsWith(int start, int length, byte[] prefix) {
+        if(length < prefix.length)
+            return false;
+        for(int i = 0; i < prefix.length; i++) {
+            if(mImageData.get(start + i) != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private int readInt(int pos) {
+        return mImageData.getInt(pos);
+    }
+
+    private void recoverTrailersFromMarkers() throws DepthImageNotFound {
+        ArrayList<int[]> images = JpegMarkerScanner.findImages(mImageData);
+        if(images.size() < 2)
+            throw new DepthImageNotFound();
+
+        // keep the directory's names for the images if it at least agrees on how many JPEGs
+        // there are; otherwise assume the usual primary, depth, confidence order
+        ArrayList<Trailer> jpegItems = new ArrayList<Trailer>();
+        if(mTrailers != null) {
+            for (Trailer t : mTrailers) {
+                if ("image/jpeg".equals(t.mime))
+                    jpegItems.add(t);
+            }
+        }
+        boolean useDirectory = jpegItems.size() == images.size();
+
+        ArrayList<Trailer> trailers = new ArrayList<Trailer>();
+        for(int i = 0; i < images.size(); i++) {
+            Trailer t = new Trailer();
+            t.mime = "image/jpeg";
+            t.start = images.get(i)[0];
+            t.end = images.get(i)[1];
+            t.size = t.end - t.start;
+            if(useDirectory) {
+                t.dataURI = jpegItems.get(i).dataURI;
+                t.semantic = jpegItems.get(i).semantic;
+            } else if(i == 0) {
+                t.semantic = "Primary";
+            } else if(i == 1) {
+                t.dataURI = depthURI();
+            } else if(i == 2) {
+                t.dataURI = confidenceURI();
+            }
+            trailers.add(t);
         }
+        mTrailers = trailers;
     }
 }
@@ -4,6 +4,8 @@ import android.graphics.Bitmap;
 import android.graphics.ImageFormat;
 import android.media.Image;
 
+import com.kmewhort.funar.processors.FramePool;
+
 import org.opencv.android.Utils;
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
@@ -13,9 +15,11 @@ import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
 import org.opencv.core.Scalar;
 import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.imgproc.Moments;
 
+import java.nio.MappedByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -26,11 +30,22 @@ import static org.opencv.core.Core.split;
 import static org.opencv.core.CvType.CV_8UC3;
 
 public class ProjectionAreaProcessor extends ImagePreprocessor {
-    private static final int RECALIBRATE_FRAME_COUNT = 20;
+    // with auto callibration, how often the quad is checked against the camera image
+    private static final int TRACK_FRAME_COUNT = 20;
     private static final int PROJECTOR_FRAME_LATENCY = 2;
 
-    // downsample scale for finding the quad
+    // downsample scale for finding the quad; callibration frames are decoded at this scale
     private static final int SIZE_REDUCTION = 2;
+    // blur kernel size for finding the quad, at full resolution
+    private static final int QUAD_BLUR_SIZE = 31;
+    // the quad is searched for on a pyramid level this much smaller than full resolution,
+    // then its corners refined on each finer level
+    private static final int QUAD_SEARCH_REDUCTION = 8;
+    // half size of the window each corner is refined in, on each level
+    private static final int CORNER_WINDOW_HALF_SIZE = 4;
+    private static final int WHITE_BORDER_THICKNESS = 400;
+    // stripe bits of the structured light patterns, each way
+    private static final int GRAY_CODE_BITS = 5;
 
     private long mProcessingStartTime;
     private long mDepthProjectStartTime;
@@ -38,24 +53,78 @@ public class ProjectionAreaProcessor extends ImagePreprocessor {
     private MatOfPoint2f mQuad;
     private MatOfPoint2f mScaledDownQuad;
     private Mat mWarpMat;
+    private int mWarpWidth;
+    private int mWarpHeight;
+    // mWarpMat compiled into fixed point remap tables (CV_16SC2 positions, and the
+    // interpolation weights), built once per warp
+    private Mat mWarpMapXY;
+    private Mat mWarpMapWeights;
+    // the stored callibration the maps may be wrapping
+    private MappedByteBuffer mStoredMapping;
+    private CallibrationStore mStore;
+    // the callibration has changed since it was last stored
+    private boolean mStoreDirty;
 
     private int mWhiteFlashCount;
 
     private boolean mVisualCallibration;
     private boolean mAutoCallibration;
+    private boolean mStructuredLightCallibration;
+    private GrayCodeCalibrator mGrayCode;
+    // the pattern being shown, and for how many frames so far
+    private int mPatternIndex;
+    private int mPatternFrame;
+    private int mDrawnPattern;
+    private Mat mPattern;
 
     private int mFrameCount;
+    private QuadTracker mTracker;
+    // frames the tracking border has been shown for, or -1 when not checking
+    private int mTrackFrame;
+    // the border is on the projection now, so the next frame is checked; and the reduced
+    // colour frame for it once decoded
+    private boolean mTrackPending;
+    private Mat mTrackingRgbMat;
 
     private Mat mDepthMat;
     private Mat mRgbMat;
+    // full resolution size of the colour image, even when mRgbMat was decoded reduced
+    private int mRgbWidth;
+    private int mRgbHeight;
 
     boolean mUseDepth16;
     boolean mColorOutput; // vs depth
     private DepthJpegProcessor mDepthBackend;
+    // once callibrated, depth output can come from DEPTH16 frames instead
+    private Depth16Processor mDepth16Backend;
+
+    // decoders for the callibration frames and the colour output; kept between frames so
+    // their output buffers are reused
+    private DepthJpegProcessor mCallibrationDepthBackend;
+    private RgbJpegProcessor mCallibrationRgbBackend;
+    private RgbJpegProcessor mRgbBackend;
+    // the frame being decoded, shared by whichever of the above need it
+    private JpegFrameContext mFrame;
+
+    private Mat mWarped;
+    private Mat mWhiteFlash;
+    // the depth backend's confidence for this frame, and warped along with the depth
+    private boolean mConfidenceOutput;
+    private Mat mConfidence;
+    private Mat mWarpedConfidence;
+    private boolean mConfidenceWarped;
 
     public ProjectionAreaProcessor(boolean outputRgb, boolean staticDepthCallibration) {
         mColorOutput = outputRgb;
         mDepthBackend = new DepthJpegProcessor(staticDepthCallibration);
+        mDepth16Backend = new Depth16Processor(staticDepthCallibration);
+        mCallibrationDepthBackend = new DepthJpegProcessor(false);
+        // callibration shows the raw depth
+        mCallibrationDepthBackend.setRawOutput(true);
+        mCallibrationRgbBackend = new RgbJpegProcessor(SIZE_REDUCTION);
+        mRgbBackend = new RgbJpegProcessor();
+        mFrame = new JpegFrameContext();
+        mTracker = new QuadTracker();
 
         mVisualCallibration = true;
         mAutoCallibration = false;
@@ -63,36 +132,93 @@ public class ProjectionAreaProcessor extends ImagePreprocessor {
     }
 
     public Mat process(Image img) {
-        if (!isCallibrated()) {
-            DepthJpegProcessor depthProcessor = new DepthJpegProcessor(false);
-            mDepthMat = depthProcessor.process(img);
+        if(img.getFormat() == ImageFormat.DEPTH16) {
+            // a frame captured before a switch back to DEPTH_JPEG is of no use
+            if(!isCallibrated()) {
+                img.close();
+                return null;
+            }
+            mDepthMat = mDepth16Backend.process(img);
+            mConfidence = null;
             if(mDepthMat == null) return null;
+            return process(mDepthMat);
+        }
 
-            // for visual callibration, we need the RGB image too
-            if (mVisualCallibration) {
-                mRgbMat = (new RgbJpegProcessor()).process(depthProcessor.getRawImageData());
-            }
+        // decode straight from the image plane; the decoded Mats don't reference it, so
+        // the image can be released before the rest of the processing
+        boolean decoded = decode(mFrame.reset(img.getPlanes()[0].getBuffer()));
+        mFrame.clear();
+        img.close();
+        if(!decoded) return null;
+
+        return process(mDepthMat);
+    }
+
+    private boolean decode(JpegFrameContext frame) {
+        if (!isCallibrated()) {
+            mDepthMat = mCallibrationDepthBackend.process(frame);
+            if(mDepthMat == null) return false;
+
+            // every kind of callibration searches the RGB image too (auto callibration for the
+            // white flash); the quad search runs downsampled anyway, so have the decoder do the
+            // downsampling. Without it the frame is of no use, rather than searching an old one.
+            mRgbMat = mCallibrationRgbBackend.process(frame);
+            if(mRgbMat == null) return false;
+            mRgbWidth = mRgbMat.width() * SIZE_REDUCTION;
+            mRgbHeight = mRgbMat.height() * SIZE_REDUCTION;
         } else {
+            if(mTrackPending)
+                mTrackingRgbMat = mCallibrationRgbBackend.process(frame);
+
             if(mColorOutput) {
-                mRgbMat = (new RgbJpegProcessor()).process(img);
-                if(mRgbMat == null) return null;
+                mRgbMat = mRgbBackend.process(frame);
+                if(mRgbMat == null) return false;
+                mRgbWidth = mRgbMat.width();
+                mRgbHeight = mRgbMat.height();
             } else {
-                mDepthMat = mDepthBackend.process(img);
-                if(mDepthMat == null) return null;
+                mDepthMat = mDepthBackend.process(frame);
+                if(mDepthMat == null) return false;
+                mConfidence = mDepthBackend.getConfidence();
             }
 
         }
-
-        return process(mDepthMat);
+        return true;
     }
 
     public Mat process(Mat mat) {
-        if(++mFrameCount % RECALIBRATE_FRAME_COUNT == 0 && mAutoCallibration) {
-            recallibrate();
+        mConfidenceWarped = false;
+
+        // rather than a full callibration every so often, check the quad is still where it
+        // was, and only search again if it's been lost. The check is against a border drawn
+        // around the output, so the corners are there to find whatever is projected, and
+        // only on DEPTH_JPEG frames, which have the colour image; switching streams for it
+        // would restart the capture session.
+        if(mTrackingRgbMat != null) {
+            trackQuad(mTrackingRgbMat);
+            mTrackingRgbMat = null;
+            mTrackPending = false;
+            mTrackFrame = -1;
+            if(!isCallibrated())
+                return null;
+        } else if(mTrackFrame >= 0) {
+            if(requiredInputFormat() != ImageFormat.DEPTH_JPEG) {
+                // switched over to DEPTH16 since; leave it until back on DEPTH_JPEG
+                mTrackFrame = -1;
+                mTrackPending = false;
+            } else if(++mTrackFrame > PROJECTOR_FRAME_LATENCY) {
+                mTrackPending = true;
+            }
+        } else if(++mFrameCount % TRACK_FRAME_COUNT == 0 && mAutoCallibration && isCallibrated() &&
+                requiredInputFormat() == ImageFormat.DEPTH_JPEG) {
+            mTrackFrame = 0;
         }
 
         if(!isCallibrated()) {
-            if (!mVisualCallibration) {
+            if (mStructuredLightCallibration) {
+                Mat pattern = structuredLightCallibration();
+                if (pattern != null)
+                    return pattern;
+            } else if (!mVisualCallibration) {
                 // start off flashing a white square
                 // TODO: would be nicer to just border the regular output
                 if (mWhiteFlashCount++ < PROJECTOR_FRAME_LATENCY) {
@@ -114,6 +240,8 @@ public class ProjectionAreaProcessor extends ImagePreprocessor {
 
                 // Phase 1: search for the brightest quadrilateral until found AND 6 seconds have past
                 if (mQuad == null || ((System.currentTimeMillis() - mProcessingStartTime) < 6000)) {
+                    if (mRgbMat == null)
+                        return null;
                     findLargestBrightestQuad();
                     Mat output = addWhiteBorder(mRgbMat);
                     if (mQuad == null)
@@ -144,23 +272,108 @@ public class ProjectionAreaProcessor extends ImagePreprocessor {
                     }
                 }
             }
+
+            // a fresh callibration; stored once its warp maps are built below
+            mStoreDirty = true;
         }
 
-        Mat warped = new Mat();
         Mat target = null;
         if(mColorOutput)
             target = mRgbMat;
         else
             target = mDepthMat;
-        Imgproc.warpPerspective(target, warped, mWarpMat, target.size());
-        return warped;
+
+        // the DEPTH16 and depth JPEG maps needn't be the same size
+        if(target.width() != mWarpWidth || target.height() != mWarpHeight) {
+            if(calculatePerspectiveTransform() == null) {
+                recallibrate();
+                return null;
+            }
+        }
+
+        if(mWarpMapXY == null)
+            buildWarpMaps();
+
+        // the same as warpPerspective, but without inverting the homography per pixel
+        mWarped = FramePool.shared().reuseMat(mWarped, target.rows(), target.cols(), target.type());
+        Imgproc.remap(target, mWarped, mWarpMapXY, mWarpMapWeights, Imgproc.INTER_LINEAR);
+        if(mConfidenceOutput && !mColorOutput && mConfidence != null &&
+                mConfidence.width() == target.width() && mConfidence.height() == target.height()) {
+            mWarpedConfidence = FramePool.shared().reuseMat(mWarpedConfidence,
+                    mConfidence.rows(), mConfidence.cols(), mConfidence.type());
+            Imgproc.remap(mConfidence, mWarpedConfidence, mWarpMapXY, mWarpMapWeights, Imgproc.INTER_LINEAR);
+            mConfidenceWarped = true;
+        }
+
+        if(mStoreDirty)
+            storeCallibration();
+        return mWarped;
+    }
+
+    @Override
+    public void releaseBuffers() {
+        mDepthBackend.releaseBuffers();
+        mDepth16Backend.releaseBuffers();
+        mCallibrationDepthBackend.releaseBuffers();
+        mCallibrationRgbBackend.releaseBuffers();
+        mRgbBackend.releaseBuffers();
+        mDepthMat = null;
+        mRgbMat = null;
+
+        FramePool.shared().returnMat(mWarped);
+        FramePool.shared().returnMat(mWarpedConfidence);
+        FramePool.shared().returnMat(mWhiteFlash);
+        FramePool.shared().returnMat(mPattern);
+        mWarped = null;
+        mWarpedConfidence = null;
+        mConfidence = null;
+        mConfidenceWarped = false;
+        mWhiteFlash = null;
+        mPattern = null;
+        mDrawnPattern = -1;
+        // rebuilt from mWarpMat when next needed
+        releaseWarpMaps();
     }
 
     public int requiredInputFormat() {
         if(!isCallibrated())
             return ImageFormat.DEPTH_JPEG;
 
-        return mUseDepth16 ? ImageFormat.DEPTH16 : ImageFormat.DEPTH_JPEG;
+        return (mUseDepth16 && !mColorOutput) ? ImageFormat.DEPTH16 : ImageFormat.DEPTH_JPEG;
+    }
+
+    // take the depth output from DEPTH16 frames once callibrated; the callibration itself
+    // and colour output still need DEPTH_JPEG. Off by default: the quad found in the colour
+    // image is just scaled onto the DEPTH16 frame, which assumes the raw ToF stream has the
+    // colour camera's field of view and aspect. Unlike the depth map in a DEPTH_JPEG, it
+    // isn't registered to the colour image, so on most devices the projection will be off.
+    public void setUseDepth16(boolean useDepth16) {
+        mUseDepth16 = useDepth16;
+    }
+
+    // the depth's confidence, warped the same way; DEPTH16 frames have none (their low
+    // confidence samples are dropped as missing instead)
+    @Override
+    public void setConfidenceOutput(boolean enable) {
+        mConfidenceOutput = enable;
+        mDepthBackend.setConfidenceOutput(enable);
+    }
+
+    @Override
+    public Mat getConfidence() {
+        return mConfidenceWarped ? mWarpedConfidence : null;
+    }
+
+    // while the quad is being checked against the camera image
+    @Override
+    public boolean needsOutputBorder() {
+        return mTrackFrame >= 0;
+    }
+
+    // have DEPTH16 depth output in 16 bit millimeters, for the processors that take it (the
+    // temporal filter and contour generator); DEPTH_JPEG frames stay 8 bit
+    public void setDepth16Millimeters(boolean millimeters) {
+        mDepth16Backend.setMillimeterOutput(millimeters);
     }
 
 
@@ -173,9 +386,17 @@ public class ProjectionAreaProcessor extends ImagePreprocessor {
         mDepthProjectStartTime = -1;
         mQuad = null;
         mWarpMat = null;
+        releaseWarpMaps();
         mWhiteFlashCount = 0;
         mFrameCount = 0;
+        mTrackFrame = -1;
+        mTrackPending = false;
+        mTrackingRgbMat = null;
+        mPatternIndex = 0;
+        mPatternFrame = 0;
+        mDrawnPattern = -1;
         mDepthBackend.recallibrate();
+        mDepth16Backend.recallibrate();
     }
 
     public void setAutoCallibrate(boolean enable) {
@@ -195,6 +416,7 @@ public class ProjectionAreaProcessor extends ImagePreprocessor {
         mScaledDownQuad = quad;
         mQuad = scaleQuadToOutputSize(mScaledDownQuad);
         mWarpMat = null;
+        releaseWarpMaps();
     }
 
     public boolean supportsDepthCallibration() {
@@ -204,28 +426,146 @@ public class ProjectionAreaProcessor extends ImagePreprocessor {
 
     @Override
     public double getCallibratedMinDepth() {
-        return mDepthBackend.getCallibratedMinDepth();
+        return activeDepthBackend().getCallibratedMinDepth();
     }
 
     @Override
     public void setCallibratedMinDepth(double depth) {
         mDepthBackend.setCallibratedMinDepth(depth);
+        mDepth16Backend.setCallibratedMinDepth(depth);
+        mStoreDirty = true;
     }
 
     @Override
     public double getCallibratedMaxDepth() {
-        return mDepthBackend.getCallibratedMaxDepth();
+        return activeDepthBackend().getCallibratedMaxDepth();
+    }
+
+    // the backend the depth output currently comes from
+    private ImagePreprocessor activeDepthBackend() {
+        if(requiredInputFormat() == ImageFormat.DEPTH16)
+            return mDepth16Backend;
+        return mDepthBackend;
     }
 
     @Override
     public void setCallibratedMaxDepth(double depth) {
         mDepthBackend.setCallibratedMaxDepth(depth);
+        mDepth16Backend.setCallibratedMaxDepth(depth);
+        mStoreDirty = true;
+    }
+
+    @Override
+    public void setCallibrationStore(CallibrationStore store) {
+        mStore = store;
+        if(store != null && !isCallibrated())
+            restoreCallibration();
+    }
+
+    private void restoreCallibration() {
+        CallibrationStore.Callibration stored = mStore.load();
+        if(stored == null)
+            return;
+
+        mRgbWidth = stored.rgbWidth;
+        mRgbHeight = stored.rgbHeight;
+        mScaledDownQuad = stored.scaledDownQuad();
+        mQuad = scaleQuadToOutputSize(mScaledDownQuad);
+        mWarpMat = stored.warpMat();
+        releaseWarpMaps();
+        if(stored.colorOutput == mColorOutput && stored.warpMapXY != null) {
+            // use the stored tables straight from the mapping
+            mWarpWidth = stored.warpWidth;
+            mWarpHeight = stored.warpHeight;
+            mWarpMapXY = stored.warpMapXY;
+            mWarpMapWeights = stored.warpMapWeights;
+            mStoredMapping = stored.mapping;
+        } else {
+            // stored for the other output; the warp is redone from the quad on the first frame
+            mWarpWidth = -1;
+            mWarpHeight = -1;
+        }
+
+        if(stored.far > stored.near) {
+            mDepthBackend.restoreRange(stored.near, stored.far);
+            mDepth16Backend.restoreRange(stored.near, stored.far);
+        }
+    }
+
+    // only after a (re)callibration or a change to the depth range; the tracker's nudges
+    // and rebuilds for a new frame size aren't worth rewriting the tables for
+    private void storeCallibration() {
+        if(mStore == null || !isCallibrated() || mWarpMapXY == null)
+            return;
+        mStoreDirty = false;
+
+        CallibrationStore.Callibration callibration = new CallibrationStore.Callibration();
+        callibration.rgbWidth = mRgbWidth;
+        callibration.rgbHeight = mRgbHeight;
+        callibration.colorOutput = mColorOutput;
+        callibration.warpWidth = mWarpWidth;
+        callibration.warpHeight = mWarpHeight;
+        ImagePreprocessor depthBackend = activeDepthBackend();
+        if(depthBackend.isCallibrated()) {
+            callibration.near = depthBackend.getCallibratedMinDepth();
+            callibration.far = depthBackend.getCallibratedMaxDepth();
+        }
+        mScaledDownQuad.get(0, 0, callibration.scaledDownQuad);
+        mWarpMat.get(0, 0, callibration.warp);
+        callibration.warpMapXY = mWarpMapXY;
+        callibration.warpMapWeights = mWarpMapWeights;
+        mStore.save(callibration);
     }
 
     public void setVisualCallibrationMode(boolean visual) {
         mVisualCallibration = visual;
     }
 
+    // callibrate by projecting Gray code stripes rather than searching for the brightest
+    // quad; a couple of dozen frames, and doesn't mind a bright room
+    public void setStructuredLightCallibration(boolean structuredLight) {
+        if(structuredLight && mGrayCode == null)
+            mGrayCode = new GrayCodeCalibrator(GRAY_CODE_BITS);
+        mStructuredLightCallibration = structuredLight;
+    }
+
+    public boolean getStructuredLightCallibration() {
+        return mStructuredLightCallibration;
+    }
+
+    // shows each pattern for long enough to get through the projector and camera, records
+    // the camera's view of it, and once through them all solves for the quad; returns the
+    // pattern to show, or null once callibrated
+    private Mat structuredLightCallibration() {
+        if (mRgbMat != null && mPatternFrame++ == PROJECTOR_FRAME_LATENCY) {
+            Mat gray8 = hsvValueChannel(mRgbMat);
+            mGrayCode.addFrame(mPatternIndex, gray8);
+            gray8.release();
+            mPatternFrame = 0;
+
+            if (++mPatternIndex == mGrayCode.getPatternCount()) {
+                mPatternIndex = 0;
+                MatOfPoint2f quad = mGrayCode.solve();
+                if (quad != null) {
+                    setCallibration(quad);
+                    if (calculatePerspectiveTransform() != null)
+                        return null;
+                }
+                // run through the patterns again
+                mQuad = null;
+                mWarpMat = null;
+            }
+        }
+
+        // the same size as the depth output, like the white flash
+        mPattern = FramePool.shared().reuseMat(mPattern, mDepthMat.height(), mDepthMat.width(), CvType.CV_8UC3);
+        if (mDrawnPattern != mPatternIndex) {
+            mGrayCode.drawPattern(mPatternIndex, mPattern);
+            mDrawnPattern = mPatternIndex;
+        }
+        return mPattern;
+    }
+
     // whether to output depth or a colour image
     public void setColorOutput(boolean color) {
         if(mColorOutput == color)
@@ -252,29 +592,46 @@ public class ProjectionAreaProcessor extends ImagePreprocessor {
     }
 
     private MatOfPoint2f scaledQuad(double width, double height) {
-        if(width == mRgbMat.width())
+        if(width == mRgbWidth)
             return mQuad;
-        else if(width == mRgbMat.width()/SIZE_REDUCTION)
+        else if(width == mRgbWidth/SIZE_REDUCTION)
             return mScaledDownQuad;
 
         MatOfPoint2f quad2f = new MatOfPoint2f();
-        double xScale = width / mRgbMat.width();
-        double yScale = height / mRgbMat.height();
+        double xScale = width / mRgbWidth;
+        double yScale = height / mRgbHeight;
         Core.multiply(mQuad, new Scalar(xScale, yScale), quad2f);
         return quad2f;
     }
 
     // based loosely on Karl Phillip: https://stackoverflow.com/questions/8667818/opencv-c-obj-c-detecting-a-sheet-of-paper-square-detection/14368605#14368605
     private MatOfPoint2f findLargestBrightestQuad() {
-        // value channel from HSV works best for brightness
-        Mat gray8 = this.hsvValueChannel();
+        // nothing decoded yet, e.g. straight after a restore or releaseBuffers()
+        if (mRgbMat == null)
+            return mQuad;
 
-        // blur and downsample
-        Imgproc.GaussianBlur(gray8, gray8, new Size(31, 31), 0);
-        Imgproc.resize(gray8, gray8, new Size(gray8.width() / SIZE_REDUCTION, gray8.height() / SIZE_REDUCTION));
+        // value channel from HSV works best for brightness
+        Mat gray8 = hsvValueChannel(mRgbMat);
+
+        // halve down to the search level; each level is blurred on the way, so the search
+        // level only needs what's left of the blur
+        List<Mat> pyramid = new ArrayList<Mat>();
+        pyramid.add(gray8);
+        int reduction = Math.max(1, mRgbWidth / gray8.width());
+        int level0Reduction = reduction;
+        while(reduction < QUAD_SEARCH_REDUCTION) {
+            Mat down = new Mat();
+            Imgproc.pyrDown(pyramid.get(pyramid.size() - 1), down);
+            pyramid.add(down);
+            reduction *= 2;
+        }
+        Mat search = new Mat();
+        int blurSize = (QUAD_BLUR_SIZE / reduction) | 1;
+        Imgproc.GaussianBlur(pyramid.get(pyramid.size() - 1), search, new Size(blurSize, blurSize), 0);
 
         // find the quadrilaterals
-        List<MatOfPoint2f> quads = findQuadContours(gray8);
+        List<MatOfPoint2f> quads = findQuadContours(search);
+        search.release();
 
         // find the biggest
         MatOfPoint2f largestSquare = null;
@@ -288,12 +645,65 @@ public class ProjectionAreaProcessor extends ImagePreprocessor {
             }
         }
 
+        if (largestSquare != null)
+            largestSquare = refineQuadCorners(largestSquare, pyramid, level0Reduction);
+        for (int i = 1; i < pyramid.size(); i++)
+            pyramid.get(i).release();
+        gray8.release();
+
         mScaledDownQuad = largestSquare;
         mQuad = scaleQuadToOutputSize(mScaledDownQuad);
 
         return mQuad;
     }
 
+    // takes the corners of a quad found on the last pyramid level down through the finer
+    // ones, refining each to sub-pixel in a small window on every level; returns it at the
+    // callibration scale
+    private MatOfPoint2f refineQuadCorners(MatOfPoint2f coarseQuad, List<Mat> pyramid, int level0Reduction) {
+        Size window = new Size(CORNER_WINDOW_HALF_SIZE, CORNER_WINDOW_HALF_SIZE);
+        Size zeroZone = new Size(-1, -1);
+        TermCriteria criteria = new TermCriteria(TermCriteria.EPS + TermCriteria.COUNT, 20, 0.03);
+
+        MatOfPoint2f quad = new MatOfPoint2f(coarseQuad.toArray());
+        for (int level = pyramid.size() - 2; level >= 0; level--) {
+            Point[] corners = quad.toArray();
+            for (Point corner : corners) {
+                corner.x = corner.x * 2;
+                corner.y = corner.y * 2;
+            }
+            quad.fromArray(corners);
+            Imgproc.cornerSubPix(pyramid.get(level), quad, window, zeroZone, criteria);
+        }
+
+        double scale = (double)level0Reduction / SIZE_REDUCTION;
+        if (scale != 1)
+            Core.multiply(quad, new Scalar(scale, scale), quad);
+
+        // refinement can only move the corners a little, but make sure it's still a quad
+        if (sortQuadPoints(quad) == null) {
+            double coarseScale = scale * (1 << (pyramid.size() - 1));
+            Core.multiply(coarseQuad, new Scalar(coarseScale, coarseScale), quad);
+        }
+        return quad;
+    }
+
+    // follows the quad if it's drifted a little, or starts callibration over if it's lost
+    private void trackQuad(Mat reducedRgb) {
+        Mat gray8 = hsvValueChannel(reducedRgb);
+        int state = mTracker.track(gray8, mScaledDownQuad);
+        gray8.release();
+
+        if(state == QuadTracker.LOST) {
+            recallibrate();
+        } else if(state == QuadTracker.MOVED) {
+            mScaledDownQuad = mTracker.getQuad();
+            mQuad = scaleQuadToOutputSize(mScaledDownQuad);
+            if(calculatePerspectiveTransform() == null)
+                recallibrate();
+        }
+    }
+
     private MatOfPoint2f scaleQuadToOutputSize(MatOfPoint2f scaledDownQuad) {
         if(scaledDownQuad == null)
             return null;
@@ -308,12 +718,14 @@ public class ProjectionAreaProcessor extends ImagePreprocessor {
 
         // the projection should be by far the brightest area - use two high thresholds
         int[] thresholds = new int[]{200, 250};
+        Mat binary = new Mat();
         for (int i = 0; i < thresholds.length; i++) {
-            Imgproc.threshold(gray8, gray8, thresholds[i], 255, 0);
+            // into a copy, so the second threshold is of the image rather than the first
+            Imgproc.threshold(gray8, binary, thresholds[i], 255, 0);
 
             List<MatOfPoint> contours = new ArrayList<MatOfPoint>();
             Mat hierarchy = new Mat();
-            Imgproc.findContours(gray8, contours, hierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
+            Imgproc.findContours(binary, contours, hierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
 
             // find the contours that are actually quadrilaterals
             for (int j = 0; j < contours.size(); j++) {
@@ -332,6 +744,7 @@ public class ProjectionAreaProcessor extends ImagePreprocessor {
                     result.add(approx);
             }
         }
+        binary.release();
         return result;
     }
 
@@ -375,8 +788,8 @@ public class ProjectionAreaProcessor extends ImagePreprocessor {
     private Mat calculatePerspectiveTransform() {
         int targetWidth, targetHeight;
         if(mColorOutput) {
-            targetWidth = mRgbMat.width();
-            targetHeight = mRgbMat.height();
+            targetWidth = mRgbWidth;
+            targetHeight = mRgbHeight;
         } else {
             targetWidth = mDepthMat.width();
             targetHeight = mDepthMat.height();
@@ -403,13 +816,57 @@ public class ProjectionAreaProcessor extends ImagePreprocessor {
         );
 
         mWarpMat = Imgproc.getPerspectiveTransform(src,dst);
+        mWarpWidth = targetWidth;
+        mWarpHeight = targetHeight;
+        releaseWarpMaps();
         return mWarpMat;
     }
 
-    private Mat hsvValueChannel() {
+    // where each output pixel comes from in the target, through the inverse of the warp
+    private void buildWarpMaps() {
+        Mat inverse = mWarpMat.inv();
+        double[] h = new double[9];
+        inverse.get(0, 0, h);
+        inverse.release();
+
+        int width = mWarpWidth;
+        int height = mWarpHeight;
+        float[] xs = new float[width * height];
+        float[] ys = new float[width * height];
+        for(int y = 0; y < height; y++) {
+            for(int x = 0; x < width; x++) {
+                double w = h[6] * x + h[7] * y + h[8];
+                w = w != 0 ? 1 / w : 0;
+                xs[y * width + x] = (float)((h[0] * x + h[1] * y + h[2]) * w);
+                ys[y * width + x] = (float)((h[3] * x + h[4] * y + h[5]) * w);
+            }
+        }
+
+        Mat mapX = new Mat(height, width, CvType.CV_32FC1);
+        Mat mapY = new Mat(height, width, CvType.CV_32FC1);
+        mapX.put(0, 0, xs);
+        mapY.put(0, 0, ys);
+        mWarpMapXY = new Mat();
+        mWarpMapWeights = new Mat();
+        Imgproc.convertMaps(mapX, mapY, mWarpMapXY, mWarpMapWeights, CvType.CV_16SC2);
+        mapX.release();
+        mapY.release();
+    }
+
+    private void releaseWarpMaps() {
+        if(mWarpMapXY != null)
+            mWarpMapXY.release();
+        if(mWarpMapWeights != null)
+            mWarpMapWeights.release();
+        mWarpMapXY = null;
+        mWarpMapWeights = null;
+        mStoredMapping = null;
+    }
+
+    private Mat hsvValueChannel(Mat rgb) {
         // convert to hsv-space, then split the channels
-        Mat hsv = new Mat(mRgbMat.height(), mRgbMat.width(), CV_8UC3);
-        Imgproc.cvtColor(mRgbMat, hsv, Imgproc.COLOR_BGR2HSV);
+        Mat hsv = new Mat(rgb.height(), rgb.width(), CV_8UC3);
+        Imgproc.cvtColor(rgb, hsv, Imgproc.COLOR_BGR2HSV);
         List<Mat> splitMat = new ArrayList<Mat>(3);
         split(hsv, splitMat);
         Mat gray8 = splitMat.get(2);
@@ -441,7 +898,9 @@ public class ProjectionAreaProcessor extends ImagePreprocessor {
 
     private Mat whiteFlashMat() {
         // align to the depth image height/weight; it's smaller
-        return new Mat(mDepthMat.height(), mDepthMat.width(), CvType.CV_8UC3, new Scalar(255,255,255));
+        mWhiteFlash = FramePool.shared().reuseMat(mWhiteFlash, mDepthMat.height(), mDepthMat.width(), CvType.CV_8UC3);
+        mWhiteFlash.setTo(new Scalar(255,255,255));
+        return mWhiteFlash;
     }
 
     private Mat addWhiteBorder(Mat input) {
@@ -453,7 +912,9 @@ public class ProjectionAreaProcessor extends ImagePreprocessor {
 
         List<MatOfPoint> contours = new ArrayList<MatOfPoint>();
         contours.add(new MatOfPoint(imageCorners));
-        Imgproc.drawContours(input, contours, 0, new Scalar(255, 255, 255), 400);
+        // keep the same border proportions whatever resolution the input was decoded at
+        int thickness = WHITE_BORDER_THICKNESS * input.width() / mRgbWidth;
+        Imgproc.drawContours(input, contours, 0, new Scalar(255, 255, 255), thickness);
         return input;
     }
 
@@ -0,0 +1,118 @@
+package com.kmewhort.funar.preprocessors;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
+import org.opencv.imgproc.Imgproc;
+
+// Keeps a found projection quad up to date without searching for it again. Each check
+// refines the four known corners to sub-pixel in small windows around where they were,
+// and eases the quad towards them; small drift is followed, but a corner that has moved
+// further than a full search would be needed for (or can't be found) means the projector
+// or camera has been bumped. The frame checked is expected to show a bright border around
+// the projection, so each refined corner must be bright on the inside and dark outside;
+// otherwise the refinement has settled on something in the projected content (or on
+// nothing at all), and the quad is taken as lost rather than moved there.
+final class QuadTracker {
+    static final int STEADY = 0;
+    static final int MOVED = 1;
+    static final int LOST = 2;
+
+    // half the search window around each corner, in pixels of the image given
+    private static final int WINDOW_HALF_SIZE = 8;
+    // a corner further than this from where it was needs the full search
+    private static final double LOST_DISTANCE = 6;
+    // movements smaller than this are noise, and don't change the quad
+    private static final double MIN_MOVE = 0.5;
+    // how far the quad moves towards the refined corners each check
+    private static final double SMOOTHING = 0.5;
+    // how far either side of a corner, towards and away from the quad's centre, its
+    // brightness is compared
+    private static final double CONTRAST_OFFSET = 3;
+    // the least brightness difference across a corner for it to be the border's
+    private static final double MIN_CONTRAST = 40;
+
+    private final Size mWindow = new Size(WINDOW_HALF_SIZE, WINDOW_HALF_SIZE);
+    private final Size mZeroZone = new Size(-1, -1);
+    private final TermCriteria mCriteria = new TermCriteria(TermCriteria.EPS + TermCriteria.COUNT, 20, 0.03);
+    private final Mat mBlurred = new Mat();
+    private final Size mBlurSize = new Size(5, 5);
+    private MatOfPoint2f mQuad;
+
+    // checks quad (in gray's coordinates) against the frame; for MOVED, getQuad() has
+    // the updated quad
+    int track(Mat gray, MatOfPoint2f quad) {
+        Point[] corners = quad.toArray();
+        for(Point corner : corners) {
+            if(corner.x < WINDOW_HALF_SIZE || corner.y < WINDOW_HALF_SIZE ||
+                    corner.x >= gray.width() - WINDOW_HALF_SIZE || corner.y >= gray.height() - WINDOW_HALF_SIZE)
+                return LOST;
+        }
+
+        Imgproc.GaussianBlur(gray, mBlurred, mBlurSize, 0);
+        MatOfPoint2f refined = new MatOfPoint2f(corners);
+        Imgproc.cornerSubPix(mBlurred, refined, mWindow, mZeroZone, mCriteria);
+        Point[] found = refined.toArray();
+        refined.release();
+        if(!hasBorderContrast(found))
+            return LOST;
+
+        double largestMove = 0;
+        for(int i = 0; i < corners.length; i++) {
+            double dx = found[i].x - corners[i].x;
+            double dy = found[i].y - corners[i].y;
+            double distance = Math.sqrt(dx * dx + dy * dy);
+            if(!(distance <= LOST_DISTANCE))
+                return LOST;
+
+            corners[i].x += dx * SMOOTHING;
+            corners[i].y += dy * SMOOTHING;
+            largestMove = Math.max(largestMove, distance * SMOOTHING);
+        }
+        if(largestMove < MIN_MOVE)
+            return STEADY;
+
+        mQuad = new MatOfPoint2f(corners);
+        return MOVED;
+    }
+
+    MatOfPoint2f getQuad() {
+        return mQuad;
+    }
+
+    private boolean hasBorderContrast(Point[] corners) {
+        double centreX = 0;
+        double centreY = 0;
+        for(Point corner : corners) {
+            centreX += corner.x / corners.length;
+            centreY += corner.y / corners.length;
+        }
+
+        for(Point corner : corners) {
+            double dx = centreX - corner.x;
+            double dy = centreY - corner.y;
+            double length = Math.sqrt(dx * dx + dy * dy);
+            if(!(length > CONTRAST_OFFSET))
+                return false;
+            dx *= CONTRAST_OFFSET / length;
+            dy *= CONTRAST_OFFSET / length;
+
+            double inside = brightness(corner.x + dx, corner.y + dy);
+            double outside = brightness(corner.x - dx, corner.y - dy);
+            if(!(inside - outside >= MIN_CONTRAST))
+                return false;
+        }
+        return true;
+    }
+
+    // NaN off the image
+    private double brightness(double x, double y) {
+        int column = (int)Math.round(x);
+        int row = (int)Math.round(y);
+        if(column < 0 || row < 0 || column >= mBlurred.width() || row >= mBlurred.height())
+            return Double.NaN;
+        return mBlurred.get(row, column)[0];
+    }
+}
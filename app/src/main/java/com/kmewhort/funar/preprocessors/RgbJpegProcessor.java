@@ -6,19 +6,40 @@ import android.graphics.BitmapFactory;
 import android.graphics.ImageFormat;
 import android.media.Image;
 
+import com.kmewhort.funar.processors.FramePool;
+
 import org.opencv.android.Utils;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
 
 import java.nio.ByteBuffer;
 
 public class RgbJpegProcessor extends ImagePreprocessor {
-    protected byte[] mImageData;
+    protected ByteBuffer mImageData;
     protected Bitmap mRgbBitmap;
     protected Mat mRgbMat;
+    protected int mDecodeScale;
+    // for frames given as a buffer, and the frame last decoded
+    protected JpegFrameContext mOwnFrame;
+    protected JpegFrameContext mDecodedFrame;
+    protected int mDecodedFrameNumber;
 
     public RgbJpegProcessor() {
+        this(1);
+    }
+
+    // decodeScale of 2, 4 or 8 has the JPEG decoder downscale in the DCT domain, which is
+    // much cheaper than decoding at full size and resizing
+    public RgbJpegProcessor(int decodeScale) {
         super();
+        mDecodeScale = decodeScale;
+        mOwnFrame = new JpegFrameContext();
+    }
+
+    public int getDecodeScale() {
+        return mDecodeScale;
     }
 
     public int requiredInputFormat() {
@@ -26,34 +47,120 @@ public class RgbJpegProcessor extends ImagePreprocessor {
     }
 
     public Mat process(Image img) {
-        ByteBuffer buffer = img.getPlanes()[0].getBuffer();
-        mImageData = new byte[buffer.remaining()];
-        buffer.get(mImageData);
+        // decode straight out of the image plane; the decoded Mat doesn't reference it
+        process(img.getPlanes()[0].getBuffer());
+        mImageData = null;
+        mOwnFrame.clear();
         img.close();
 
-        return process(mImageData);
+        return mRgbMat;
     }
 
     public Mat process(byte[] rawImageData) {
-        mImageData = rawImageData;
+        return process(ByteBuffer.wrap(rawImageData));
+    }
+
+    public Mat process(ByteBuffer rawImageData) {
+        return process(mOwnFrame.reset(rawImageData));
+    }
+
+    // decodes the primary image of a frame that other decoders may share; asking again
+    // for the same frame returns the same Mat
+    public Mat process(JpegFrameContext frame) {
+        if(frame == mDecodedFrame && frame.getFrameNumber() == mDecodedFrameNumber)
+            return mRgbMat;
+        mDecodedFrame = frame;
+        mDecodedFrameNumber = frame.getFrameNumber();
+
+        mImageData = frame.getImageData();
         decodeRgbImage();
         return mRgbMat;
     }
 
-    public byte[] getRawImageData() {
+    public ByteBuffer getRawImageData() {
         return mImageData;
     }
 
     private void decodeRgbImage() {
-        mRgbBitmap = BitmapFactory.decodeByteArray(mImageData, 0, mImageData.length);
+        if(mImageData.isDirect()) {
+            decodeDirectRgbImage();
+            return;
+        }
+
+        // decode into the last frame's bitmap where possible
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = mDecodeScale;
+        options.inMutable = true;
+        options.inBitmap = mRgbBitmap;
+        if(mImageData.hasArray()) {
+            mRgbBitmap = decodeBitmap(mImageData.array(),
+                    mImageData.arrayOffset() + mImageData.position(), mImageData.remaining(), options);
+        } else {
+            byte[] imageData = new byte[mImageData.remaining()];
+            mImageData.duplicate().get(imageData);
+            mRgbBitmap = decodeBitmap(imageData, 0, imageData.length, options);
+        }
 
         if(mRgbBitmap == null){
+            FramePool.shared().returnMat(mRgbMat);
             mRgbMat = null;
             return;
         }
 
-        // TODO: there may be a way to go straight to Mat through OpenCV decode
-        mRgbMat = new Mat(mRgbBitmap.getHeight(), mRgbBitmap.getWidth(), CvType.CV_8UC3);
+        // bitmapToMat produces RGBA
+        mRgbMat = FramePool.shared().reuseMat(mRgbMat, mRgbBitmap.getHeight(), mRgbBitmap.getWidth(), CvType.CV_8UC4);
         Utils.bitmapToMat(mRgbBitmap, mRgbMat);
     }
+
+    private Bitmap decodeBitmap(byte[] data, int offset, int length, BitmapFactory.Options options) {
+        try {
+            return BitmapFactory.decodeByteArray(data, offset, length, options);
+        } catch (IllegalArgumentException e) {
+            // the reused bitmap can't hold this image
+            FramePool.shared().returnBitmap(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, offset, length, options);
+        }
+    }
+
+    // native buffers (e.g. Image planes) can be wrapped by a Mat and decoded by OpenCV
+    // without first copying the JPEG to the Java heap
+    private void decodeDirectRgbImage() {
+        // the Mat wraps the buffer from its base address, so slice off the position first
+        Mat encoded = new Mat(1, mImageData.remaining(), CvType.CV_8UC1, mImageData.slice());
+        Mat bgr = Imgcodecs.imdecode(encoded, decodeFlags());
+        encoded.release();
+
+        if(bgr.empty()) {
+            FramePool.shared().returnMat(mRgbMat);
+            mRgbMat = null;
+            return;
+        }
+
+        // match the RGBA layout that Utils.bitmapToMat produces
+        mRgbMat = FramePool.shared().reuseMat(mRgbMat, bgr.rows(), bgr.cols(), CvType.CV_8UC4);
+        Imgproc.cvtColor(bgr, mRgbMat, Imgproc.COLOR_BGR2RGBA);
+        bgr.release();
+    }
+
+    @Override
+    public void releaseBuffers() {
+        FramePool.shared().returnMat(mRgbMat);
+        FramePool.shared().returnBitmap(mRgbBitmap);
+        mRgbMat = null;
+        mRgbBitmap = null;
+    }
+
+    private int decodeFlags() {
+        switch(mDecodeScale) {
+            case 2:
+                return Imgcodecs.IMREAD_REDUCED_COLOR_2;
+            case 4:
+                return Imgcodecs.IMREAD_REDUCED_COLOR_4;
+            case 8:
+                return Imgcodecs.IMREAD_REDUCED_COLOR_8;
+            default:
+                return Imgcodecs.IMREAD_COLOR;
+        }
+    }
 }
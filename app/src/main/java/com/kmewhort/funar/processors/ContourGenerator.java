@@ -2,62 +2,405 @@ package com.kmewhort.funar.processors;
 
 import android.media.Image;
 
+import org.opencv.core.Core;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfPoint;
 import org.opencv.core.Scalar;
+import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.opencv.core.Core.normalize;
 import static org.opencv.core.CvType.CV_16UC1;
+import static org.opencv.core.CvType.CV_32FC1;
 import static org.opencv.core.CvType.CV_8U;
 import static org.opencv.core.CvType.CV_8UC3;
 
 public class ContourGenerator extends ImageProcessor {
+    private static final Scalar CONTOUR_COLOR = new Scalar(0, 255, 0);
+    // fixed levels are an isoline at every LEVEL_STEP from 0, for LEVEL_COUNT levels;
+    // adaptive ones use the same number of levels
+    private static final int LEVEL_COUNT = 16;
+    private static final int LEVEL_STEP = 8;
+    // smallest band of rows worth handing to another thread
+    private static final int MIN_BAND_ROWS = 32;
+    // the vector output's depth texture is this much smaller each way than the input
+    private static final int TEXTURE_REDUCTION = 4;
+    // how far, in input pixels, a simplified polyline may stray from the traced one
+    private static final float DEFAULT_VECTOR_TOLERANCE = 1.0f;
+
+    // shared by all the generators, as only one effect runs at a time
+    private static ForkJoinPool sPool;
+
     Mat mMat;
     boolean mNormalize;
 
+    private IsolineExtractor mExtractor;
+    private ContourLevels mLevels;
+    private boolean mParallel;
+    private boolean mIncremental;
+    private boolean mVectorOutput;
+    private float mVectorTolerance;
+
+    // everything below is kept between frames, and only reallocated when the input size
+    // changes, so that once running a frame allocates nothing
+    private int mWidth;
+    private int mHeight;
+    private int mBufferResizeCount;
+    private Mat mGray;
+    private Mat mGray3;
+    private Mat mColormap;
+    private Mat mResult;
+    private Mat mIsolineMask;
+    private Mat mIsolineColor;
+    private byte[] mDepth;
+    private byte[] mIsolines;
+    private IsolinePass mIsolinePass;
+    // for 16 bit (millimeter) and float (meter) input
+    private DepthQuantizer mQuantizer;
+    private short[] mMillimeters;
+    private float[] mMeters;
+    private byte[] mLevelMap;
+    private int[] mMillimeterThresholds;
+    private boolean mMillimeterInput;
+    // the depth the isolines are extracted from; the 8 bit depth itself, or mLevelMap
+    private byte[] mLevelSource;
+    // for incremental mode
+    private ContourTiles mTiles;
+    private byte[] mColormapColors;
+    private byte[] mIsolineColorBytes;
+    // number of levels the depth is currently quantized to
+    private int mLevelCount;
+    // for vector output
+    private ContourTracer mTracer;
+    private ContourPolylines mPolylines;
+    // whether mPolylines were traced from the last frame processed
+    private boolean mPolylinesCurrent;
+    private byte[] mVectorLevels;
+    private Size mTextureSize;
+    private Mat mTextureIndex;
+    private Mat mTexture3;
+    private Mat mTexture;
+
     public ContourGenerator() {
+        mExtractor = new IsolineExtractor();
+        mLevels = new ContourLevels(LEVEL_COUNT, LEVEL_STEP);
+        mParallel = true;
+        mVectorTolerance = DEFAULT_VECTOR_TOLERANCE;
+    }
+
+    // whether to extract the isolines in bands across all the cores; the output is the
+    // same either way
+    public void setParallel(boolean parallel) {
+        mParallel = parallel;
+    }
+
+    public boolean isParallel() {
+        return mParallel;
+    }
+
+    // whether to only redraw the parts of the frame where the depth levels have changed,
+    // which makes a still scene nearly free; small changes within a tile aren't shown
+    // until enough of it has changed
+    public void setIncremental(boolean incremental) {
+        if(incremental && !mIncremental && mTiles != null)
+            mTiles.invalidate();
+        mIncremental = incremental;
+    }
+
+    public boolean isIncremental() {
+        return mIncremental;
+    }
+
+    // rather than drawing the isolines into the frame, trace them into polylines (see
+    // getPolylines()) and output only a low resolution colormapped depth texture, so the
+    // lines can be drawn over it at the display's resolution instead of the input's
+    public void setVectorOutput(boolean vectorOutput) {
+        mVectorOutput = vectorOutput;
+    }
+
+    public boolean isVectorOutput() {
+        return mVectorOutput;
+    }
+
+    // how far, in input pixels, the polylines may be simplified from the traced isolines
+    public void setVectorTolerance(float tolerance) {
+        mVectorTolerance = tolerance;
+    }
+
+    // the isolines of the last frame processed, if it was in vector output mode, or null
+    public ContourPolylines getPolylines() {
+        return mVectorOutput && mPolylinesCurrent ? mPolylines : null;
+    }
+
+    // isolines every 8 from 0, for 16 levels
+    public void setFixedLevels() {
+        mLevels.setFixed(LEVEL_COUNT, LEVEL_STEP);
+    }
+
+    // isolines between levels of about the same number of pixels, following the live
+    // depth histogram
+    public void setEqualPopulationLevels() {
+        mLevels.setEqualPopulation(LEVEL_COUNT);
+    }
+
+    // an isoline every spacing meters, across the depth range given to setDepthRange
+    public void setMetricLevels(double spacing) {
+        mLevels.setMetric(spacing);
+    }
+
+    // the depth range the input's 0-255 is scaled across, in meters; for 16 bit and float
+    // input, the range the colormap is spread across
+    public void setDepthRange(double near, double far) {
+        mLevels.setDepthRange(near, far);
+    }
+
+    // number of times the frame buffers have been (re)sized; stays put once the input size
+    // is steady
+    public int getBufferResizeCount() {
+        return mBufferResizeCount;
     }
 
     public Mat process(Mat input) {
+        mPolylinesCurrent = false;
+        if(input.cols() != mWidth || input.rows() != mHeight || mResult == null)
+            resizeBuffers(input.cols(), input.rows());
+
+        if(input.type() == CV_16UC1 || input.type() == CV_32FC1) {
+            // keep the full depth precision
+            quantizeMillimeters(input);
+            mMat = mGray;
+            mMat.put(0, 0, mDepth);
+            return contours();
+        }
+
         // convert the 3-channel gray input to gray
         if(input.channels() != 1) {
-            // TODO: use 16 bit?
-            mMat = new Mat();
+            mMat = mGray;
             Imgproc.cvtColor(input, mMat, Imgproc.COLOR_RGB2GRAY);
         } else {
             mMat = input;
         }
-        if(mMat.type() == CV_16UC1) {
-            // input range is 0 to 8191, but chop off really far away
-            Imgproc.threshold(mMat, mMat, 2047, 8191, Imgproc.THRESH_TRUNC);
-            mMat.convertTo(mMat, CV_8U, 256.0/2047.0);
+        mMat.get(0, 0, mDepth);
+        if(mLevels.update(mDepth) || mMillimeterInput) {
+            mExtractor.setThresholds(mLevels.getThresholds(), mLevels.getThresholdCount());
+            mLevelCount = mLevels.getThresholdCount() + 1;
+            mTiles.invalidate();
         }
+        mMillimeterInput = false;
+        mLevelSource = mDepth;
 
         return contours();
     }
 
+    // mDepth (the 8 bit depth, or colour index) and mLevelSource are filled in
     protected Mat contours() {
-        Mat result = new Mat(mMat.height(), mMat.width(), CV_8UC3);
+        Mat result = mResult;
 
-        // start with a colormap
-        Imgproc.applyColorMap(mMat, result, Imgproc.COLORMAP_JET);
+        if(mVectorOutput)
+            return vectors();
 
-        // for each spread of 16 between 0 and 256
-        for(int i = 0; i < 16; i++) {
-            Mat threshold = new Mat();
-            Imgproc.threshold(mMat, threshold, i * 8, (i + 1) * 8, 0);
+        if(mIncremental) {
+            // redraw the changed tiles into the retained output
+            mTiles.update(mLevelSource, mDepth, mIsolines, mExtractor, mColormapColors, mIsolineColorBytes);
+            result.put(0, 0, mTiles.getOutput());
+            return result;
+        }
 
-            List<MatOfPoint> contours = new ArrayList();
-            Mat hierarchy = new Mat();
-            Imgproc.findContours(threshold, contours, hierarchy, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_SIMPLE);
+        // start with a colormap; the same lookup applyColorMap does, but into our buffers
+        Imgproc.cvtColor(mMat, mGray3, Imgproc.COLOR_GRAY2BGR);
+        Core.LUT(mGray3, mColormap, result);
 
-            // draw all contours
-            Imgproc.drawContours(result, contours, -1, new Scalar(0, 255, 0), 1);
+        // find the isolines of all the levels at once, and draw them over it
+        if(mParallel && mIsolinePass.getBandCount() > 1) {
+            mIsolinePass.extract(pool(), mLevelSource, mIsolines);
+        } else {
+            mExtractor.extract(mLevelSource, mIsolines, mWidth, mHeight, 0, mHeight);
         }
+        mIsolineMask.put(0, 0, mIsolines);
+        mIsolineColor.copyTo(result, mIsolineMask);
         return result;
     }
+
+    // traces the isolines into mPolylines, and outputs the reduced texture
+    private Mat vectors() {
+        if(mTracer == null) {
+            mTracer = new ContourTracer();
+            mPolylines = new ContourPolylines();
+        }
+
+        byte[] levels = mLevelSource;
+        if(!mMillimeterInput) {
+            // levels are in the extractor's lookup for 8 bit depth
+            if(mVectorLevels == null)
+                mVectorLevels = new byte[mWidth * mHeight];
+            for(int i = 0; i < levels.length; i++)
+                mVectorLevels[i] = (byte)mExtractor.levelOf(levels[i]);
+            levels = mVectorLevels;
+        }
+        mTracer.trace(levels, mWidth, mHeight, mLevelCount, mVectorTolerance, mPolylines);
+        mPolylinesCurrent = true;
+
+        Imgproc.resize(mMat, mTextureIndex, mTextureSize, 0, 0, Imgproc.INTER_AREA);
+        Imgproc.cvtColor(mTextureIndex, mTexture3, Imgproc.COLOR_GRAY2BGR);
+        Core.LUT(mTexture3, mColormap, mTexture);
+        return mTexture;
+    }
+
+    // one pass from millimeters to the colour index (mDepth) and isoline levels (mLevelMap);
+    // the level thresholds are chosen on the colour index as for 8 bit input, then set in
+    // millimeters
+    private void quantizeMillimeters(Mat input) {
+        if(mQuantizer == null) {
+            mQuantizer = new DepthQuantizer();
+            mMillimeterThresholds = new int[ContourLevels.MAX_LEVELS];
+        }
+        if(mMillimeters == null) {
+            mMillimeters = new short[mWidth * mHeight];
+            mLevelMap = new byte[mWidth * mHeight];
+        }
+
+        if(input.type() == CV_16UC1) {
+            input.get(0, 0, mMillimeters);
+        } else {
+            if(mMeters == null)
+                mMeters = new float[mWidth * mHeight];
+            input.get(0, 0, mMeters);
+            DepthQuantizer.metersToMillimeters(mMeters, mMillimeters);
+        }
+
+        boolean rangeChanged = mQuantizer.setRange(
+                (int)Math.round(mLevels.getNear() * 1000), (int)Math.round(mLevels.getFar() * 1000));
+        if(rangeChanged || !mMillimeterInput)
+            setMillimeterThresholds();
+        mQuantizer.quantize(mMillimeters, mDepth, mLevelMap);
+
+        if(mLevels.update(mDepth)) {
+            // levels only move when the histogram drifts, so redoing the frame is rare
+            setMillimeterThresholds();
+            mQuantizer.quantize(mMillimeters, mDepth, mLevelMap);
+        }
+        mLevelSource = mLevelMap;
+    }
+
+    private void setMillimeterThresholds() {
+        int[] thresholds = mMillimeterThresholds;
+        int count = 0;
+        if(mLevels.getMode() == ContourLevels.METRIC && mLevels.getMetricSpacing() > 0) {
+            // exact millimeter spacing, rather than rounded to the colour index
+            int spacing = (int)Math.max(1, Math.round(mLevels.getMetricSpacing() * 1000));
+            thresholds[count++] = mQuantizer.getNear();
+            while(count < thresholds.length && thresholds[count - 1] + spacing < mQuantizer.getFar()) {
+                thresholds[count] = thresholds[count - 1] + spacing;
+                count++;
+            }
+        } else {
+            for(int i = 0; i < mLevels.getThresholdCount(); i++)
+                thresholds[count++] = mQuantizer.toMillimeters(mLevels.getThresholds()[i]);
+        }
+        mQuantizer.setThresholds(thresholds, count);
+        mLevelCount = count + 1;
+
+        if(!mMillimeterInput) {
+            // the levels come in ready quantized
+            mExtractor.setIdentityLevels();
+            mMillimeterInput = true;
+        }
+        mTiles.invalidate();
+    }
+
+    private void resizeBuffers(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mBufferResizeCount++;
+
+        FramePool pool = FramePool.shared();
+        mGray = pool.reuseMat(mGray, height, width, CV_8U);
+        mGray3 = pool.reuseMat(mGray3, height, width, CV_8UC3);
+        mResult = pool.reuseMat(mResult, height, width, CV_8UC3);
+        mIsolineMask = pool.reuseMat(mIsolineMask, height, width, CV_8U);
+        mIsolineColor = pool.reuseMat(mIsolineColor, height, width, CV_8UC3);
+        mIsolineColor.setTo(CONTOUR_COLOR).release();
+        mDepth = new byte[width * height];
+        mIsolines = new byte[width * height];
+        mMillimeters = null;
+        mMeters = null;
+        mLevelMap = null;
+        mVectorLevels = null;
+
+        int textureWidth = Math.max(1, width / TEXTURE_REDUCTION);
+        int textureHeight = Math.max(1, height / TEXTURE_REDUCTION);
+        mTextureSize = new Size(textureWidth, textureHeight);
+        mTextureIndex = pool.reuseMat(mTextureIndex, textureHeight, textureWidth, CV_8U);
+        mTexture3 = pool.reuseMat(mTexture3, textureHeight, textureWidth, CV_8UC3);
+        mTexture = pool.reuseMat(mTexture, textureHeight, textureWidth, CV_8UC3);
+
+        if(mColormap == null) {
+            Mat ramp = new Mat(1, 256, CV_8U);
+            byte[] values = new byte[256];
+            for(int i = 0; i < 256; i++)
+                values[i] = (byte)i;
+            ramp.put(0, 0, values);
+            mColormap = new Mat();
+            Imgproc.applyColorMap(ramp, mColormap, Imgproc.COLORMAP_JET);
+            ramp.release();
+
+            mColormapColors = new byte[256 * 3];
+            mColormap.get(0, 0, mColormapColors);
+            mIsolineColorBytes = new byte[3];
+            for(int i = 0; i < 3; i++)
+                mIsolineColorBytes[i] = (byte)CONTOUR_COLOR.val[i];
+        }
+        mTiles = new ContourTiles(width, height);
+
+        mIsolinePass = new IsolinePass(mExtractor, width, height,
+                IsolinePass.bandRows(height, pool().getParallelism(), MIN_BAND_ROWS));
+    }
+
+    private static synchronized ForkJoinPool pool() {
+        if(sPool == null)
+            sPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        return sPool;
+    }
+
+    @Override
+    public void releaseBuffers() {
+        FramePool pool = FramePool.shared();
+        pool.returnMat(mGray);
+        pool.returnMat(mGray3);
+        pool.returnMat(mResult);
+        pool.returnMat(mIsolineMask);
+        pool.returnMat(mIsolineColor);
+        pool.returnMat(mTextureIndex);
+        pool.returnMat(mTexture3);
+        pool.returnMat(mTexture);
+        if(mColormap != null)
+            mColormap.release();
+        mGray = null;
+        mGray3 = null;
+        mResult = null;
+        mIsolineMask = null;
+        mIsolineColor = null;
+        mTextureIndex = null;
+        mTexture3 = null;
+        mTexture = null;
+        mColormap = null;
+        mDepth = null;
+        mIsolines = null;
+        mIsolinePass = null;
+        mMillimeters = null;
+        mMeters = null;
+        mLevelMap = null;
+        mLevelSource = null;
+        mVectorLevels = null;
+        mTracer = null;
+        mPolylines = null;
+        mPolylinesCurrent = false;
+        mTiles = null;
+        mColormapColors = null;
+        mIsolineColorBytes = null;
+        mMat = null;
+        mWidth = 0;
+        mHeight = 0;
+    }
 }
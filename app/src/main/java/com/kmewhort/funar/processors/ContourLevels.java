@@ -0,0 +1,201 @@
+package com.kmewhort.funar.processors;
+
+// Chooses the depth thresholds the isolines are drawn at. Either a fixed step, levels of
+// equal population from a running histogram of the depth (so a shallow scene doesn't
+// spend most of its levels on empty depths, and a deep one keeps its detail), or a fixed
+// spacing in meters across the callibrated depth range. Levels are only recomputed when
+// the histogram has drifted from the one they were computed from, or the range changes.
+class ContourLevels {
+    static final int FIXED = 0;
+    static final int EQUAL_POPULATION = 1;
+    static final int METRIC = 2;
+
+    static final int MAX_LEVELS = 32;
+    // only every SAMPLE_STRIDE'th pixel goes into the histogram
+    private static final int SAMPLE_STRIDE = 4;
+    // weight left on the running histogram each frame
+    private static final float DECAY = 0.75f;
+    // total variation from the histogram the levels were computed from before recomputing
+    private static final float DRIFT_THRESHOLD = 0.1f;
+
+    private int mMode;
+    private int mLevelCount;
+    private int mLevelStep;
+    private double mMetricSpacing;
+    private double mNear;
+    private double mFar;
+
+    private final int[] mThresholds = new int[MAX_LEVELS];
+    private int mThresholdCount;
+    private boolean mStale;
+
+    private final int[] mCounts = new int[256];
+    private final float[] mHistogram = new float[256];
+    private final float[] mLevelsHistogram = new float[256];
+    private boolean mHasHistogram;
+
+    ContourLevels(int levelCount, int levelStep) {
+        setFixed(levelCount, levelStep);
+    }
+
+    // levelCount thresholds at 0, step, 2*step, ...
+    void setFixed(int levelCount, int levelStep) {
+        mMode = FIXED;
+        mLevelCount = Math.min(levelCount, MAX_LEVELS);
+        mLevelStep = levelStep;
+        mStale = true;
+    }
+
+    // levelCount levels holding about the same number of pixels each
+    void setEqualPopulation(int levelCount) {
+        mMode = EQUAL_POPULATION;
+        mLevelCount = Math.min(levelCount, MAX_LEVELS);
+        mStale = true;
+    }
+
+    // a level every spacing meters between the near and far of the depth range
+    void setMetric(double spacing) {
+        mMode = METRIC;
+        mMetricSpacing = spacing;
+        mStale = true;
+    }
+
+    int getMode() {
+        return mMode;
+    }
+
+    double getMetricSpacing() {
+        return mMetricSpacing;
+    }
+
+    double getNear() {
+        return mNear;
+    }
+
+    double getFar() {
+        return mFar;
+    }
+
+    // the range that 0-255 depth is scaled across, in meters
+    void setDepthRange(double near, double far) {
+        if(near == mNear && far == mFar)
+            return;
+        mNear = near;
+        mFar = far;
+        if(mMode == METRIC)
+            mStale = true;
+    }
+
+    int[] getThresholds() {
+        return mThresholds;
+    }
+
+    int getThresholdCount() {
+        return mThresholdCount;
+    }
+
+    // takes in a frame of depth; returns whether the thresholds have changed
+    boolean update(byte[] depth) {
+        if(mMode == EQUAL_POPULATION)
+            accumulate(depth);
+        if(!mStale && !(mMode == EQUAL_POPULATION && hasDrifted()))
+            return false;
+
+        switch(mMode) {
+            case EQUAL_POPULATION:
+                equalPopulationThresholds();
+                break;
+            case METRIC:
+                metricThresholds();
+                break;
+            default:
+                fixedThresholds();
+        }
+        mStale = false;
+        return true;
+    }
+
+    private void accumulate(byte[] depth) {
+        int[] counts = mCounts;
+        for(int i = 0; i < 256; i++)
+            counts[i] = 0;
+        for(int i = 0; i < depth.length; i += SAMPLE_STRIDE)
+            counts[depth[i] & 0xff]++;
+
+        // no depth doesn't count towards any level
+        int total = 0;
+        for(int i = 1; i < 256; i++)
+            total += counts[i];
+        if(total == 0)
+            return;
+
+        float decay = mHasHistogram ? DECAY : 0;
+        for(int i = 0; i < 256; i++)
+            mHistogram[i] = mHistogram[i] * decay + (i == 0 ? 0 : (1 - decay) * counts[i] / (float)total);
+        mHasHistogram = true;
+    }
+
+    private boolean hasDrifted() {
+        float difference = 0;
+        for(int i = 0; i < 256; i++)
+            difference += Math.abs(mHistogram[i] - mLevelsHistogram[i]);
+        return difference / 2 > DRIFT_THRESHOLD;
+    }
+
+    private void fixedThresholds() {
+        mThresholdCount = 0;
+        for(int i = 0; i < mLevelCount; i++)
+            addThreshold(i * mLevelStep);
+    }
+
+    private void equalPopulationThresholds() {
+        if(!mHasHistogram) {
+            // nothing to go on yet; spread the levels evenly
+            mThresholdCount = 0;
+            for(int i = 0; i < mLevelCount; i++)
+                addThreshold(i * 255 / mLevelCount);
+            return;
+        }
+
+        float total = 0;
+        for(int i = 0; i < 256; i++)
+            total += mHistogram[i];
+
+        // the first level is everything with depth; the rest start where the cumulative
+        // population passes each fraction, skipping levels that would be empty
+        mThresholdCount = 0;
+        addThreshold(0);
+        float cumulative = 0;
+        int level = 1;
+        for(int v = 1; v < 255 && level < mLevelCount; v++) {
+            cumulative += mHistogram[v];
+            if(cumulative >= total * level / mLevelCount) {
+                addThreshold(v);
+                while(level < mLevelCount && cumulative >= total * level / mLevelCount)
+                    level++;
+            }
+        }
+        System.arraycopy(mHistogram, 0, mLevelsHistogram, 0, 256);
+    }
+
+    private void metricThresholds() {
+        mThresholdCount = 0;
+        addThreshold(0);
+        if(!(mFar > mNear) || !(mMetricSpacing > 0))
+            return;
+
+        // the depth preprocessors spread near to far over 1 to 255, 0 being no depth
+        double step = 254.0 * mMetricSpacing / (mFar - mNear);
+        for(int i = 1; 1 + i * step < 255 && mThresholdCount < MAX_LEVELS; i++)
+            addThreshold(1 + (int)Math.round(i * step));
+    }
+
+    // thresholds are kept strictly increasing, so no level is empty by construction
+    private void addThreshold(int threshold) {
+        if(mThresholdCount == MAX_LEVELS || threshold > 254)
+            return;
+        if(mThresholdCount > 0 && threshold <= mThresholds[mThresholdCount - 1])
+            return;
+        mThresholds[mThresholdCount++] = threshold;
+    }
+}
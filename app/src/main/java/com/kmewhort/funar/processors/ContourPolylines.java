@@ -0,0 +1,136 @@
+package com.kmewhort.funar.processors;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+import java.util.Arrays;
+
+// Contours as vectors rather than pixels: for each level, closed polylines packed as x,y
+// float pairs in the coordinates of the depth they were traced from (getWidth() by
+// getHeight()), so they can be drawn at whatever resolution the output is. Reused from
+// frame to frame; only valid until the generator's next frame.
+public class ContourPolylines {
+    private int mWidth;
+    private int mHeight;
+    private int mLevelCount;
+
+    private float[][] mPoints = new float[0][];
+    private int[] mPointCounts = new int[0];
+    private int[][] mStarts = new int[0][];
+    private int[] mPolylineCounts = new int[0];
+
+    // scratch for draw()
+    private float[] mSegments = new float[0];
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getLevelCount() {
+        return mLevelCount;
+    }
+
+    // x,y pairs of all the level's polylines, one after another
+    public float[] getPoints(int level) {
+        return mPoints[level];
+    }
+
+    public int getPointCount(int level) {
+        return mPointCounts[level];
+    }
+
+    // index of the first point of each of the level's polylines; each runs to the start of
+    // the next (or getPointCount()), and closes back on its first point
+    public int[] getPolylineStarts(int level) {
+        return mStarts[level];
+    }
+
+    public int getPolylineCount(int level) {
+        return mPolylineCounts[level];
+    }
+
+    // draws every level, scaled to the canvas
+    public void draw(Canvas canvas, Paint paint) {
+        if(mWidth == 0 || mHeight == 0)
+            return;
+        float xScale = canvas.getWidth() / (float)mWidth;
+        float yScale = canvas.getHeight() / (float)mHeight;
+        for(int level = 0; level < mLevelCount; level++) {
+            float[] points = mPoints[level];
+            int[] starts = mStarts[level];
+            int polylineCount = mPolylineCounts[level];
+
+            // drawLines takes separate segments, four floats each
+            int segmentCount = mPointCounts[level];
+            if(mSegments.length < segmentCount * 4)
+                mSegments = new float[segmentCount * 8];
+            int s = 0;
+            for(int p = 0; p < polylineCount; p++) {
+                int start = starts[p];
+                int end = p + 1 < polylineCount ? starts[p + 1] : mPointCounts[level];
+                for(int i = start; i < end; i++) {
+                    int next = i + 1 < end ? i + 1 : start;
+                    mSegments[s++] = points[i * 2] * xScale;
+                    mSegments[s++] = points[i * 2 + 1] * yScale;
+                    mSegments[s++] = points[next * 2] * xScale;
+                    mSegments[s++] = points[next * 2 + 1] * yScale;
+                }
+            }
+            canvas.drawLines(mSegments, 0, s, paint);
+        }
+    }
+
+    void begin(int width, int height, int levelCount) {
+        mWidth = width;
+        mHeight = height;
+        if(mPoints.length < levelCount) {
+            float[][] points = new float[levelCount][];
+            int[][] starts = new int[levelCount][];
+            for(int i = 0; i < levelCount; i++) {
+                points[i] = i < mPoints.length ? mPoints[i] : new float[64];
+                starts[i] = i < mStarts.length ? mStarts[i] : new int[8];
+            }
+            mPoints = points;
+            mStarts = starts;
+            mPointCounts = new int[levelCount];
+            mPolylineCounts = new int[levelCount];
+        }
+        mLevelCount = levelCount;
+        for(int i = 0; i < levelCount; i++) {
+            mPointCounts[i] = 0;
+            mPolylineCounts[i] = 0;
+        }
+    }
+
+    // adds the points of polyline that are flagged in keep
+    void addPolyline(int level, float[] polyline, boolean[] keep, int pointCount) {
+        int kept = 0;
+        for(int i = 0; i < pointCount; i++) {
+            if(keep[i])
+                kept++;
+        }
+        if(kept < 2)
+            return;
+
+        if(mPolylineCounts[level] == mStarts[level].length)
+            mStarts[level] = Arrays.copyOf(mStarts[level], mStarts[level].length * 2);
+        int count = mPointCounts[level];
+        if(mPoints[level].length < (count + kept) * 2)
+            mPoints[level] = Arrays.copyOf(mPoints[level], Math.max(mPoints[level].length * 2, (count + kept) * 2));
+
+        mStarts[level][mPolylineCounts[level]++] = count;
+        float[] points = mPoints[level];
+        for(int i = 0; i < pointCount; i++) {
+            if(!keep[i])
+                continue;
+            points[count * 2] = polyline[i * 2];
+            points[count * 2 + 1] = polyline[i * 2 + 1];
+            count++;
+        }
+        mPointCounts[level] = count;
+    }
+}
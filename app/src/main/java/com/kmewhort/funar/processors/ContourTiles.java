@@ -0,0 +1,117 @@
+package com.kmewhort.funar.processors;
+
+// Incremental contour rendering for a mostly still scene. The frame is split into tiles,
+// and each tile remembers the quantized depth it was last drawn from; only tiles where
+// enough pixels have since changed level are redrawn (colormap and isolines) into the
+// retained output, the rest keep what they showed. Comparing against the last drawn
+// levels rather than the previous frame means slow changes still add up to a redraw.
+class ContourTiles {
+    private static final int TILE_SIZE = 32;
+    // pixels in a tile that must change level for it to be redrawn
+    private static final int CHANGED_PIXEL_THRESHOLD = 16;
+    // never a real level, so everything is drawn the first time
+    private static final byte NOT_DRAWN = (byte)0xff;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final byte[] mDrawnLevels;
+    // packed 3 channel output
+    private final byte[] mOutput;
+
+    ContourTiles(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mDrawnLevels = new byte[width * height];
+        mOutput = new byte[width * height * 3];
+        invalidate();
+    }
+
+    byte[] getOutput() {
+        return mOutput;
+    }
+
+    // redraw everything on the next update, e.g. when the levels change
+    void invalidate() {
+        for(int i = 0; i < mDrawnLevels.length; i++)
+            mDrawnLevels[i] = NOT_DRAWN;
+    }
+
+    // redraws the changed tiles from depth, using isolines as scratch space; colormap is
+    // 256 packed 3 channel colours and isolineColor the 3 channels of an isoline. Returns
+    // the number of tiles redrawn.
+    int update(byte[] depth, byte[] isolines, IsolineExtractor extractor, byte[] colormap,
+               byte[] isolineColor) {
+        return update(depth, depth, isolines, extractor, colormap, isolineColor);
+    }
+
+    // the same, with the levels taken from levelDepth and the colours from colorIndex, for
+    // depth that has been quantized separately
+    int update(byte[] levelDepth, byte[] colorIndex, byte[] isolines, IsolineExtractor extractor,
+               byte[] colormap, byte[] isolineColor) {
+        int redrawn = 0;
+        for(int tileY = 0; tileY < mHeight; tileY += TILE_SIZE) {
+            int toY = Math.min(tileY + TILE_SIZE, mHeight);
+            for(int tileX = 0; tileX < mWidth; tileX += TILE_SIZE) {
+                int toX = Math.min(tileX + TILE_SIZE, mWidth);
+                if(!isChanged(levelDepth, extractor, tileX, tileY, toX, toY))
+                    continue;
+
+                // isolines depend on the neighbouring pixels, so redraw a pixel further on
+                // each side; those belong to the next tiles, but are drawn from the
+                // current depth like the rest
+                int fromRow = Math.max(tileY - 1, 0);
+                int toRow = Math.min(toY + 1, mHeight);
+                int fromCol = Math.max(tileX - 1, 0);
+                int toCol = Math.min(toX + 1, mWidth);
+                extractor.extract(levelDepth, isolines, mWidth, mHeight, fromRow, toRow, fromCol, toCol);
+                draw(colorIndex, isolines, colormap, isolineColor, fromRow, toRow, fromCol, toCol);
+                markDrawn(levelDepth, extractor, tileX, tileY, toX, toY);
+                redrawn++;
+            }
+        }
+        return redrawn;
+    }
+
+    private boolean isChanged(byte[] depth, IsolineExtractor extractor, int fromX, int fromY, int toX, int toY) {
+        int changed = 0;
+        for(int y = fromY; y < toY; y++) {
+            int row = y * mWidth;
+            for(int x = fromX; x < toX; x++) {
+                int i = row + x;
+                if(extractor.levelOf(depth[i]) != mDrawnLevels[i] && ++changed > CHANGED_PIXEL_THRESHOLD)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private void markDrawn(byte[] depth, IsolineExtractor extractor, int fromX, int fromY, int toX, int toY) {
+        for(int y = fromY; y < toY; y++) {
+            int row = y * mWidth;
+            for(int x = fromX; x < toX; x++)
+                mDrawnLevels[row + x] = (byte)extractor.levelOf(depth[row + x]);
+        }
+    }
+
+    private void draw(byte[] depth, byte[] isolines, byte[] colormap, byte[] isolineColor,
+                      int fromRow, int toRow, int fromCol, int toCol) {
+        byte[] output = mOutput;
+        for(int y = fromRow; y < toRow; y++) {
+            int row = y * mWidth;
+            for(int x = fromCol; x < toCol; x++) {
+                int i = row + x;
+                int o = i * 3;
+                if(isolines[i] != 0) {
+                    output[o] = isolineColor[0];
+                    output[o + 1] = isolineColor[1];
+                    output[o + 2] = isolineColor[2];
+                } else {
+                    int c = (depth[i] & 0xff) * 3;
+                    output[o] = colormap[c];
+                    output[o + 1] = colormap[c + 1];
+                    output[o + 2] = colormap[c + 2];
+                }
+            }
+        }
+    }
+}
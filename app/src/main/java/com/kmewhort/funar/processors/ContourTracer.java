@@ -0,0 +1,250 @@
+package com.kmewhort.funar.processors;
+
+import java.util.Arrays;
+
+// Traces the boundary of each level of a level map into closed polylines, marching squares
+// style: each cell of four neighbouring pixels the boundary passes through gets a segment
+// between the midpoints of its crossed edges, and the segments are followed from cell to
+// cell with the level on the right. Outside the image counts as level 0, so every
+// boundary closes. The polylines are then thinned with Douglas-Peucker to within a
+// tolerance. Only cells with more than one level in them are visited per level, which is
+// a small part of the frame.
+class ContourTracer {
+    // edges of a cell, clockwise; edge e runs from corner e to corner e + 1, with the
+    // corners top left, top right, bottom right, bottom left
+    private static final int TOP = 0;
+    private static final int RIGHT = 1;
+    private static final int BOTTOM = 2;
+    private static final int LEFT = 3;
+    private static final int NO_EXIT = -1;
+
+    // the edge followed out of a cell, by inside corners (bit per corner) and entry edge
+    private static final byte[] sExit = new byte[16 * 4];
+    // offset of each edge's midpoint from the cell's top left corner
+    private static final float[] sEdgeX = { 0.5f, 1, 0.5f, 0 };
+    private static final float[] sEdgeY = { 0, 0.5f, 1, 0.5f };
+
+    static {
+        for(int corners = 0; corners < 16; corners++) {
+            for(int entry = 0; entry < 4; entry++) {
+                int exit = NO_EXIT;
+                // entering with the level on the right, the first corner of the edge is in it
+                if(isInside(corners, entry) && !isInside(corners, entry + 1)) {
+                    // leave where the second corner is; at a saddle, around the same corner,
+                    // so diagonal corners of a level aren't joined
+                    for(int edge = 0; edge < 4; edge++) {
+                        if(!isInside(corners, edge) && isInside(corners, edge + 1)) {
+                            if(exit == NO_EXIT || (edge + 1) % 4 == entry)
+                                exit = edge;
+                        }
+                    }
+                }
+                sExit[corners * 4 + entry] = (byte)exit;
+            }
+        }
+    }
+
+    private static boolean isInside(int corners, int corner) {
+        return (corners & (1 << (corner % 4))) != 0;
+    }
+
+    private int mWidth;
+    private int mHeight;
+    // cells are offset by one, so the cells along the outside of the image exist
+    private int mCellWidth;
+    // lowest and highest level in each cell, and the cells that have more than one
+    private byte[] mLowest;
+    private byte[] mHighest;
+    private int[] mCrossed;
+    private int mCrossedCount;
+    // entry edges already followed, a bit per edge
+    private byte[] mVisited;
+    // scratch for one polyline
+    private float[] mPolyline = new float[256];
+    private boolean[] mKeep = new boolean[128];
+    private int[] mStack = new int[64];
+
+    // levels are 0 to levelCount - 1; the polylines of level l are the boundaries of
+    // everything at level l or above, so level 0 has none
+    void trace(byte[] levels, int width, int height, int levelCount, float tolerance,
+               ContourPolylines output) {
+        if(width != mWidth || height != mHeight) {
+            mWidth = width;
+            mHeight = height;
+            mCellWidth = width + 1;
+            int cells = (width + 1) * (height + 1);
+            mLowest = new byte[cells];
+            mHighest = new byte[cells];
+            mCrossed = new int[cells];
+            mVisited = new byte[cells];
+        }
+        output.begin(width, height, levelCount);
+        findCrossedCells(levels);
+
+        for(int level = 1; level < levelCount; level++) {
+            for(int c = 0; c < mCrossedCount; c++) {
+                int cell = mCrossed[c];
+                if(mLowest[cell] >= level || mHighest[cell] < level)
+                    continue;
+                int corners = corners(levels, cell, level);
+                for(int entry = 0; entry < 4; entry++) {
+                    if(sExit[corners * 4 + entry] != NO_EXIT && (mVisited[cell] & (1 << entry)) == 0)
+                        follow(levels, cell, entry, level, tolerance, output);
+                }
+            }
+            for(int c = 0; c < mCrossedCount; c++)
+                mVisited[mCrossed[c]] = 0;
+        }
+    }
+
+    private void findCrossedCells(byte[] levels) {
+        mCrossedCount = 0;
+        for(int cy = -1; cy < mHeight; cy++) {
+            for(int cx = -1; cx < mWidth; cx++) {
+                int a = levelAt(levels, cx, cy);
+                int b = levelAt(levels, cx + 1, cy);
+                int c = levelAt(levels, cx + 1, cy + 1);
+                int d = levelAt(levels, cx, cy + 1);
+                int lowest = Math.min(Math.min(a, b), Math.min(c, d));
+                int highest = Math.max(Math.max(a, b), Math.max(c, d));
+                if(lowest == highest)
+                    continue;
+                int cell = (cy + 1) * mCellWidth + cx + 1;
+                mLowest[cell] = (byte)lowest;
+                mHighest[cell] = (byte)highest;
+                mCrossed[mCrossedCount++] = cell;
+            }
+        }
+    }
+
+    private int levelAt(byte[] levels, int x, int y) {
+        if(x < 0 || y < 0 || x >= mWidth || y >= mHeight)
+            return 0;
+        return levels[y * mWidth + x];
+    }
+
+    private int corners(byte[] levels, int cell, int level) {
+        int cx = cell % mCellWidth - 1;
+        int cy = cell / mCellWidth - 1;
+        int corners = 0;
+        if(levelAt(levels, cx, cy) >= level)
+            corners |= 1;
+        if(levelAt(levels, cx + 1, cy) >= level)
+            corners |= 2;
+        if(levelAt(levels, cx + 1, cy + 1) >= level)
+            corners |= 4;
+        if(levelAt(levels, cx, cy + 1) >= level)
+            corners |= 8;
+        return corners;
+    }
+
+    // follows a boundary from cell around until it closes, then simplifies and outputs it
+    private void follow(byte[] levels, int cell, int entry, int level, float tolerance,
+                        ContourPolylines output) {
+        int count = 0;
+        while((mVisited[cell] & (1 << entry)) == 0) {
+            mVisited[cell] |= 1 << entry;
+            int exit = sExit[corners(levels, cell, level) * 4 + entry];
+
+            if(mPolyline.length < (count + 1) * 2)
+                mPolyline = Arrays.copyOf(mPolyline, mPolyline.length * 2);
+            int cx = cell % mCellWidth - 1;
+            int cy = cell / mCellWidth - 1;
+            // cell corners are pixel centres
+            mPolyline[count * 2] = cx + 0.5f + sEdgeX[exit];
+            mPolyline[count * 2 + 1] = cy + 0.5f + sEdgeY[exit];
+            count++;
+
+            switch(exit) {
+                case TOP:
+                    cell -= mCellWidth;
+                    break;
+                case RIGHT:
+                    cell++;
+                    break;
+                case BOTTOM:
+                    cell += mCellWidth;
+                    break;
+                case LEFT:
+                    cell--;
+                    break;
+            }
+            entry = (exit + 2) % 4;
+        }
+
+        simplify(count, tolerance);
+        output.addPolyline(level, mPolyline, mKeep, count);
+    }
+
+    // Douglas-Peucker over the closed polyline, split at its first point and the point
+    // farthest from it; marks the points to keep in mKeep
+    private void simplify(int count, float tolerance) {
+        if(mKeep.length < count)
+            mKeep = new boolean[mPolyline.length / 2];
+        if(count < 4 || !(tolerance > 0)) {
+            for(int i = 0; i < count; i++)
+                mKeep[i] = true;
+            return;
+        }
+
+        int farthest = 0;
+        float farthestDistance = -1;
+        for(int i = 1; i < count; i++) {
+            float dx = mPolyline[i * 2] - mPolyline[0];
+            float dy = mPolyline[i * 2 + 1] - mPolyline[1];
+            if(dx * dx + dy * dy > farthestDistance) {
+                farthestDistance = dx * dx + dy * dy;
+                farthest = i;
+            }
+        }
+        for(int i = 0; i < count; i++)
+            mKeep[i] = false;
+        mKeep[0] = true;
+        mKeep[farthest] = true;
+
+        // each half as a span [from, to], with the point after the last being the first
+        int stackSize = 0;
+        mStack[stackSize++] = 0;
+        mStack[stackSize++] = farthest;
+        mStack[stackSize++] = farthest;
+        mStack[stackSize++] = count;
+        float toleranceSquared = tolerance * tolerance;
+        while(stackSize > 0) {
+            int to = mStack[--stackSize];
+            int from = mStack[--stackSize];
+            if(to - from < 2)
+                continue;
+
+            float ax = mPolyline[from * 2];
+            float ay = mPolyline[from * 2 + 1];
+            float bx = mPolyline[(to % count) * 2];
+            float by = mPolyline[(to % count) * 2 + 1];
+            float dx = bx - ax;
+            float dy = by - ay;
+            float length = dx * dx + dy * dy;
+
+            int worst = -1;
+            float worstDistance = toleranceSquared;
+            for(int i = from + 1; i < to; i++) {
+                float px = mPolyline[i * 2] - ax;
+                float py = mPolyline[i * 2 + 1] - ay;
+                float cross = px * dy - py * dx;
+                float distance = length > 0 ? cross * cross / length : px * px + py * py;
+                if(distance > worstDistance) {
+                    worstDistance = distance;
+                    worst = i;
+                }
+            }
+            if(worst < 0)
+                continue;
+
+            mKeep[worst] = true;
+            if(mStack.length < stackSize + 4)
+                mStack = Arrays.copyOf(mStack, mStack.length * 2);
+            mStack[stackSize++] = from;
+            mStack[stackSize++] = worst;
+            mStack[stackSize++] = worst;
+            mStack[stackSize++] = to;
+        }
+    }
+}
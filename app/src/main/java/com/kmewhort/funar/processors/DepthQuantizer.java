@@ -0,0 +1,81 @@
+package com.kmewhort.funar.processors;
+
+// Quantizes 16 bit depth in millimeters for the contours without first squeezing it into 8
+// bits: one pass through two 64K lookup tables gives each pixel an 8 bit colour index
+// (linear across the depth range, for the colormap) and its isoline level, with the level
+// thresholds set in millimeters at full precision.
+class DepthQuantizer {
+    // where 16 bit input used to be truncated, for when there's no depth range
+    private static final int DEFAULT_FAR = 2047;
+
+    private final byte[] mColorIndexOf = new byte[1 << 16];
+    private final byte[] mLevelOf = new byte[1 << 16];
+    private int mNear = -1;
+    private int mFar = -1;
+
+    DepthQuantizer() {
+        setRange(0, 0);
+    }
+
+    // the range the colour index is spread across, in millimeters; returns whether it changed
+    boolean setRange(int near, int far) {
+        if(!(far > near)) {
+            near = 0;
+            far = DEFAULT_FAR;
+        }
+        if(near == mNear && far == mFar)
+            return false;
+
+        mNear = near;
+        mFar = far;
+        for(int v = 0; v < mColorIndexOf.length; v++) {
+            long index = Math.round((v - near) * 255.0 / (far - near));
+            mColorIndexOf[v] = (byte)(index > 255 ? 255 : (index > 0 ? index : 0));
+        }
+        return true;
+    }
+
+    int getNear() {
+        return mNear;
+    }
+
+    int getFar() {
+        return mFar;
+    }
+
+    // the depth at a colour index, for carrying thresholds chosen on the colour index over
+    int toMillimeters(int colorIndex) {
+        return (int)Math.round(mNear + colorIndex * (mFar - mNear) / 255.0);
+    }
+
+    // thresholds in increasing millimeters; the level of a depth is the number it's above
+    void setThresholds(int[] thresholds, int count) {
+        int level = 0;
+        for(int v = 0; v < mLevelOf.length; v++) {
+            while(level < count && v > thresholds[level])
+                level++;
+            mLevelOf[v] = (byte)level;
+        }
+    }
+
+    void quantize(short[] depth, byte[] colorIndex, byte[] levels) {
+        byte[] colorIndexOf = mColorIndexOf;
+        byte[] levelOf = mLevelOf;
+        for(int i = 0; i < depth.length; i++) {
+            int v = depth[i] & 0xffff;
+            colorIndex[i] = colorIndexOf[v];
+            levels[i] = levelOf[v];
+        }
+    }
+
+    // metric float depth to millimeters; anything without a valid depth becomes 0
+    static void metersToMillimeters(float[] meters, short[] millimeters) {
+        for(int i = 0; i < meters.length; i++) {
+            float mm = meters[i] * 1000;
+            if(!(mm > 0))
+                millimeters[i] = 0;
+            else
+                millimeters[i] = (short)(mm < 65535 ? Math.round(mm) : 65535);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.kmewhort.funar.processors;
+
+import android.graphics.Bitmap;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+// Pool of frame sized Mats and Bitmaps, keyed by size and type, so that frame buffers get
+// reused rather than allocated every frame and left for the finalizers to free. Processors
+// keep their output buffers between frames (an output is valid until the processor's next
+// process() call), swapping them through the pool when the geometry changes and handing
+// them back when released.
+public class FramePool {
+    private static final int MAX_POOLED_PER_KEY = 3;
+    private static final FramePool sShared = new FramePool();
+
+    private final HashMap<Long, ArrayDeque<Mat>> mMats = new HashMap<>();
+    private final HashMap<Long, ArrayDeque<Bitmap>> mBitmaps = new HashMap<>();
+    // Mats and Bitmaps created because there wasn't one pooled
+    private long mAllocationCount;
+
+    public static FramePool shared() {
+        return sShared;
+    }
+
+    public synchronized Mat borrowMat(int rows, int cols, int type) {
+        ArrayDeque<Mat> mats = mMats.get(matKey(rows, cols, type));
+        Mat mat = mats == null ? null : mats.poll();
+        if(mat != null)
+            return mat;
+        mAllocationCount++;
+        return new Mat(rows, cols, type);
+    }
+
+    // the caller must not use the Mat again; anything the pool can't take is released
+    public synchronized void returnMat(Mat mat) {
+        if(mat == null)
+            return;
+        if(mat.empty() || mat.isSubmatrix() || !mat.isContinuous()) {
+            mat.release();
+            return;
+        }
+
+        long key = matKey(mat.rows(), mat.cols(), mat.type());
+        ArrayDeque<Mat> mats = mMats.get(key);
+        if(mats == null) {
+            mats = new ArrayDeque<>();
+            mMats.put(key, mats);
+        }
+        if(mats.size() >= MAX_POOLED_PER_KEY || mats.contains(mat))
+            mat.release();
+        else
+            mats.push(mat);
+    }
+
+    // returns mat if it already has the geometry, otherwise swaps it for one that does
+    public Mat reuseMat(Mat mat, int rows, int cols, int type) {
+        if(mat != null && mat.rows() == rows && mat.cols() == cols && mat.type() == type)
+            return mat;
+        returnMat(mat);
+        return borrowMat(rows, cols, type);
+    }
+
+    public synchronized Bitmap borrowBitmap(int width, int height, Bitmap.Config config) {
+        ArrayDeque<Bitmap> bitmaps = mBitmaps.get(bitmapKey(width, height, config));
+        Bitmap bitmap = bitmaps == null ? null : bitmaps.poll();
+        if(bitmap != null)
+            return bitmap;
+        mAllocationCount++;
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    // the caller must not use (or display) the Bitmap again
+    public synchronized void returnBitmap(Bitmap bitmap) {
+        if(bitmap == null || bitmap.isRecycled())
+            return;
+        if(!bitmap.isMutable()) {
+            bitmap.recycle();
+            return;
+        }
+
+        long key = bitmapKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayDeque<Bitmap> bitmaps = mBitmaps.get(key);
+        if(bitmaps == null) {
+            bitmaps = new ArrayDeque<>();
+            mBitmaps.put(key, bitmaps);
+        }
+        if(bitmaps.size() >= MAX_POOLED_PER_KEY || bitmaps.contains(bitmap))
+            bitmap.recycle();
+        else
+            bitmaps.push(bitmap);
+    }
+
+    // number of frame buffers the pool has had to allocate; stays put once the processors
+    // are running steadily
+    public synchronized long getAllocationCount() {
+        return mAllocationCount;
+    }
+
+    // frees everything pooled, e.g. when the camera is paused
+    public synchronized void clear() {
+        for(ArrayDeque<Mat> mats : mMats.values()) {
+            for(Mat mat : mats)
+                mat.release();
+        }
+        mMats.clear();
+
+        for(ArrayDeque<Bitmap> bitmaps : mBitmaps.values()) {
+            for(Bitmap bitmap : bitmaps)
+                bitmap.recycle();
+        }
+        mBitmaps.clear();
+    }
+
+    private static long matKey(int rows, int cols, int type) {
+        // opencv types fit in 12 bits
+        return ((long)rows << 32) | ((long)cols << 12) | (type & 0xfff);
+    }
+
+    private static long bitmapKey(int width, int height, Bitmap.Config config) {
+        return ((long)width << 32) | ((long)height << 8) | (config == null ? 0xff : config.ordinal());
+    }
+}
@@ -11,4 +11,8 @@ public abstract class ImageProcessor {
     public ImageProcessor() { }
 
     abstract public Mat process(Mat mat);
+
+    // hand any buffers kept between frames back to the FramePool, e.g. when switching
+    // effects; the processor reallocates them if it's used again
+    public void releaseBuffers() { }
 }
@@ -0,0 +1,71 @@
+package com.kmewhort.funar.processors;
+
+// Finds the boundaries of every depth level in a single pass over 8 bit depth, rather than
+// thresholding and tracing each level separately. Marching squares style, the level of
+// each pixel is compared with its four neighbours: a pixel is on an isoline wherever a
+// neighbour is at a lower level, which marks the same pixels the traced outer and hole
+// borders of each level would. Since quantizing is monotonic, that only needs the level
+// of the pixel and of its lowest neighbour.
+class IsolineExtractor {
+    static final byte ISOLINE = (byte)255;
+
+    // quantized level of each depth value
+    private final byte[] mLevelOf = new byte[256];
+
+    IsolineExtractor() {
+    }
+
+    // thresholds in increasing order; the level of a depth is the number of thresholds it's
+    // above, the same regions as thresholding at each of them
+    void setThresholds(int[] thresholds, int count) {
+        int level = 0;
+        for(int v = 0; v < 256; v++) {
+            while(level < count && v > thresholds[level])
+                level++;
+            mLevelOf[v] = (byte)level;
+        }
+    }
+
+    // for input that is already quantized to levels
+    void setIdentityLevels() {
+        for(int v = 0; v < 256; v++)
+            mLevelOf[v] = (byte)v;
+    }
+
+    int levelOf(int depth) {
+        return mLevelOf[depth & 0xff];
+    }
+
+    // marks the isoline pixels of rows [fromRow, toRow) in mask and clears the rest; pixels
+    // at the edge of the image count as bordering level 0
+    void extract(byte[] depth, byte[] mask, int width, int height, int fromRow, int toRow) {
+        extract(depth, mask, width, height, fromRow, toRow, 0, width);
+    }
+
+    // the same, for just columns [fromCol, toCol) of the rows
+    void extract(byte[] depth, byte[] mask, int width, int height, int fromRow, int toRow,
+                 int fromCol, int toCol) {
+        byte[] levelOf = mLevelOf;
+        for(int y = fromRow; y < toRow; y++) {
+            int row = y * width;
+            boolean edgeRow = y == 0 || y == height - 1;
+            for(int x = fromCol; x < toCol; x++) {
+                int i = row + x;
+                int level = levelOf[depth[i] & 0xff];
+                if(level == 0) {
+                    mask[i] = 0;
+                    continue;
+                }
+                if(edgeRow || x == 0 || x == width - 1) {
+                    mask[i] = ISOLINE;
+                    continue;
+                }
+
+                int lowest = Math.min(
+                        Math.min(depth[i - 1] & 0xff, depth[i + 1] & 0xff),
+                        Math.min(depth[i - width] & 0xff, depth[i + width] & 0xff));
+                mask[i] = level > levelOf[lowest] ? ISOLINE : 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.kmewhort.funar.processors;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// The isolines of a whole frame, extracted in bands of rows across a ForkJoinPool. The
+// bands are a fixed set that is reused every frame; the extractor only writes the rows
+// it's given and reads the neighbouring rows directly, so the bands join up without any
+// stitching and match the serial output exactly.
+class IsolinePass extends RecursiveAction {
+    private final IsolineExtractor mExtractor;
+    private final int mWidth;
+    private final int mHeight;
+    private final Band[] mBands;
+    // the frame being extracted
+    private byte[] mDepth;
+    private byte[] mMask;
+
+    IsolinePass(IsolineExtractor extractor, int width, int height, int bandRows) {
+        mExtractor = extractor;
+        mWidth = width;
+        mHeight = height;
+        int bandCount = (height + bandRows - 1) / bandRows;
+        mBands = new Band[bandCount];
+        for(int i = 0; i < bandCount; i++)
+            mBands[i] = new Band(i * bandRows, Math.min(height, (i + 1) * bandRows));
+    }
+
+    // rows per band for a frame of height, giving each of the pool's threads a few bands
+    // to balance over, but none smaller than minRows
+    static int bandRows(int height, int parallelism, int minRows) {
+        return Math.max(minRows, height / (parallelism * 4));
+    }
+
+    int getBandCount() {
+        return mBands.length;
+    }
+
+    // the same as extractor.extract(depth, mask, width, height, 0, height)
+    void extract(ForkJoinPool pool, byte[] depth, byte[] mask) {
+        mDepth = depth;
+        mMask = mask;
+        reinitialize();
+        pool.invoke(this);
+        mDepth = null;
+        mMask = null;
+    }
+
+    @Override
+    protected void compute() {
+        for(int i = 0; i < mBands.length; i++)
+            mBands[i].reinitialize();
+        invokeAll(mBands);
+    }
+
+    private class Band extends RecursiveAction {
+        private final int mFromRow;
+        private final int mToRow;
+
+        Band(int fromRow, int toRow) {
+            mFromRow = fromRow;
+            mToRow = toRow;
+        }
+
+        @Override
+        protected void compute() {
+            mExtractor.extract(mDepth, mMask, mWidth, mHeight, mFromRow, mToRow);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.kmewhort.funar.processors;
+
+import org.opencv.core.Mat;
+
+import static org.opencv.core.CvType.CV_16UC1;
+import static org.opencv.core.CvType.CV_8UC1;
+
+// Smooths 8 bit depth, or 16 bit millimeters, over time so the contours drawn from it don't
+// shimmer. Each pixel
+// keeps a running average, weighted by the depth's own per pixel confidence where the
+// preprocessor has one (see setConfidence) and summed over the frames in a row it has
+// agreed with, that snaps to the new value when it moves by more than the motion
+// threshold, so hands and bodies aren't smeared. 0 is taken as no depth, which is what the
+// depth preprocessors output for missing samples (valid depth, however near, is 1 to 255),
+// as are samples of too little confidence: a pixel holds its last value while its weight
+// runs out, and is then filled from the nearest valid pixel in its row. All the state is
+// in primitive buffers that are updated in place.
+public class TemporalDepthFilter extends ImageProcessor {
+    private static final int MOTION_THRESHOLD = 24;
+    // about the same across a typical callibrated range
+    private static final int MOTION_THRESHOLD_MILLIMETERS = 150;
+    // the most weight a pixel's history carries, in frames of full confidence
+    private static final float MAX_WEIGHT = 8;
+    // samples less sure than this (out of 1) count as missing
+    private static final float MIN_CONFIDENCE = 0.25f;
+    private static final int NO_DEPTH = 0;
+
+    private int mWidth;
+    private int mHeight;
+    private int mType;
+    // the input and output for 8 bit depth, or for millimeters; only one pair is kept
+    private byte[] mInput;
+    private short[] mInput16;
+    private float[] mSmoothed;
+    private float[] mWeight;
+    // confidence of the next input, or null if it has none
+    private Mat mConfidenceMat;
+    private byte[] mConfidence;
+    private byte[] mOutput;
+    private short[] mOutput16;
+    // nearest valid pixel to the left of each pixel in the row being filled
+    private int[] mLeftValid;
+
+    private Mat mResult;
+
+    public TemporalDepthFilter() {
+    }
+
+    // 8 bit confidence of the next input (255 the most sure), lined up with it; null
+    // weights every sample fully
+    public void setConfidence(Mat confidence) {
+        mConfidenceMat = confidence;
+    }
+
+    public Mat process(Mat input) {
+        Mat confidenceMat = mConfidenceMat;
+        mConfidenceMat = null;
+        int type = input.type();
+        if(type != CV_8UC1 && type != CV_16UC1)
+            return input;
+
+        int width = input.cols();
+        int height = input.rows();
+        if(mSmoothed == null || width != mWidth || height != mHeight || type != mType)
+            reset(width, height, type);
+
+        if(type == CV_16UC1)
+            input.get(0, 0, mInput16);
+        else
+            input.get(0, 0, mInput);
+        boolean weighted = confidenceMat != null && confidenceMat.type() == CV_8UC1 &&
+                confidenceMat.cols() == width && confidenceMat.rows() == height;
+        if(weighted)
+            confidenceMat.get(0, 0, mConfidence);
+        update(weighted);
+        for(int y = 0; y < height; y++)
+            fillRow(y * width);
+
+        mResult = FramePool.shared().reuseMat(mResult, height, width, type);
+        if(type == CV_16UC1)
+            mResult.put(0, 0, mOutput16);
+        else
+            mResult.put(0, 0, mOutput);
+        return mResult;
+    }
+
+    // a change of type starts over too, e.g. when the preprocessor moves on to millimeters
+    private void reset(int width, int height, int type) {
+        mWidth = width;
+        mHeight = height;
+        mType = type;
+        boolean millimeters = type == CV_16UC1;
+        mInput = millimeters ? null : new byte[width * height];
+        mOutput = millimeters ? null : new byte[width * height];
+        mInput16 = millimeters ? new short[width * height] : null;
+        mOutput16 = millimeters ? new short[width * height] : null;
+        mSmoothed = new float[width * height];
+        mWeight = new float[width * height];
+        mConfidence = new byte[width * height];
+        mLeftValid = new int[width];
+    }
+
+    private void update(boolean weighted) {
+        byte[] input = mInput;
+        short[] input16 = mInput16;
+        float[] smoothed = mSmoothed;
+        float[] weights = mWeight;
+        byte[] confidence = mConfidence;
+        byte[] output = mOutput;
+        short[] output16 = mOutput16;
+        int threshold = input16 != null ? MOTION_THRESHOLD_MILLIMETERS : MOTION_THRESHOLD;
+
+        for(int i = 0; i < smoothed.length; i++) {
+            int value = input16 != null ? input16[i] & 0xffff : input[i] & 0xff;
+            float sample = weighted ? (confidence[i] & 0xff) / 255f : 1;
+            float weight = weights[i];
+
+            if(value == NO_DEPTH || sample < MIN_CONFIDENCE) {
+                // hold the last value until its weight runs out
+                weight = weight > 1 ? weight - 1 : 0;
+            } else if(weight == 0 || Math.abs(value - smoothed[i]) > threshold) {
+                // new or moved: start again from this frame
+                smoothed[i] = value;
+                weight = sample;
+            } else {
+                weight = Math.min(weight + sample, MAX_WEIGHT);
+                smoothed[i] += (value - smoothed[i]) * sample / weight;
+            }
+
+            weights[i] = weight;
+            int result = weight > 0 ? Math.round(smoothed[i]) : NO_DEPTH;
+            if(output16 != null)
+                output16[i] = (short)result;
+            else
+                output[i] = (byte)result;
+        }
+    }
+
+    // fill the pixels without depth from the nearest valid one in the row
+    private void fillRow(int rowStart) {
+        byte[] output = mOutput;
+        short[] output16 = mOutput16;
+        float[] weights = mWeight;
+        int[] leftValid = mLeftValid;
+        int width = mWidth;
+
+        int last = -1;
+        for(int x = 0; x < width; x++) {
+            if(weights[rowStart + x] > 0)
+                last = x;
+            leftValid[x] = last;
+        }
+        if(last < 0)
+            return; // nothing to fill from
+
+        int right = -1;
+        for(int x = width - 1; x >= 0; x--) {
+            if(weights[rowStart + x] > 0) {
+                right = x;
+                continue;
+            }
+
+            int left = leftValid[x];
+            int nearest;
+            if(left < 0)
+                nearest = right;
+            else if(right < 0 || x - left <= right - x)
+                nearest = left;
+            else
+                nearest = right;
+            if(output16 != null)
+                output16[rowStart + x] = output16[rowStart + nearest];
+            else
+                output[rowStart + x] = output[rowStart + nearest];
+        }
+    }
+
+    @Override
+    public void releaseBuffers() {
+        FramePool.shared().returnMat(mResult);
+        mResult = null;
+        mInput = null;
+        mInput16 = null;
+        mSmoothed = null;
+        mWeight = null;
+        mConfidence = null;
+        mConfidenceMat = null;
+        mOutput = null;
+        mOutput16 = null;
+        mLeftValid = null;
+    }
+}
@@ -0,0 +1,157 @@
+package com.kmewhort.funar.preprocessors;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * The pure Java part of decoding a DEPTH_JPEG frame: the container parse and the depth
+ * lookup table. The JPEG decode itself is OpenCV's, so is benchmarked on a device by
+ * DepthJpegDecodeBenchmark.
+ */
+public class DepthJpegDecodeTest {
+    @Test
+    public void parse_findsDepthTrailer() throws Exception {
+        byte[] depth = jpeg(300, 7);
+        DepthFrame frame = new JpegParser(container(depth, String.valueOf(depth.length))).parse();
+
+        assertFalse(frame.isRecovered());
+        assertArrayEquals(depth, bytes(frame.getDepthMap()));
+        assertEquals(0.25, frame.getNear(), 0);
+        assertEquals(4.0, frame.getFar(), 0);
+    }
+
+    @Test
+    public void parse_wrongLengthFallsBackToMarkers() throws Exception {
+        byte[] depth = jpeg(300, 7);
+        for(String length : new String[] { null, "0", "2", "-5", "abc", "99999999" }) {
+            DepthFrame frame = new JpegParser(container(depth, length)).parse();
+            assertTrue(frame.isRecovered());
+            assertArrayEquals(depth, bytes(frame.getDepthMap()));
+        }
+    }
+
+    @Test
+    public void parse_readsDirectBuffersInPlace() throws Exception {
+        byte[] depth = jpeg(20000, 3);
+        byte[] container = container(depth, String.valueOf(depth.length));
+        // direct, like an Image plane
+        ByteBuffer data = ByteBuffer.allocateDirect(container.length);
+        data.put(container);
+        data.flip();
+
+        // the depth is a slice of the frame rather than a copy, and parsing doesn't move it
+        for(int i = 0; i < 2; i++) {
+            ByteBuffer depthMap = new JpegParser(data).parse().getDepthMap();
+            assertTrue(depthMap.isDirect());
+            assertArrayEquals(depth, bytes(depthMap));
+            assertEquals(0, data.position());
+        }
+    }
+
+    @Test
+    public void frameContext_hasNoParserOnceCleared() throws Exception {
+        byte[] depth = jpeg(300, 7);
+        JpegFrameContext frame = new JpegFrameContext();
+        frame.reset(ByteBuffer.wrap(container(depth, String.valueOf(depth.length))));
+        assertNotNull(frame.getParser());
+
+        frame.clear();
+        assertNull(frame.getParser());
+        assertNull(frame.getDepthFrame());
+    }
+
+    @Test
+    public void depthTable_sameRangeSpansValidDepth() {
+        byte[] table = new byte[256];
+        DepthJpegProcessor.depthTable(0.25, 4.0, 0.25, 4.0, table);
+
+        // 0 is left for no depth
+        assertEquals(1, table[0] & 0xff);
+        assertEquals(255, table[255] & 0xff);
+        for(int i = 1; i < 256; i++)
+            assertTrue(i + " is below " + (i - 1), (table[i] & 0xff) >= (table[i - 1] & 0xff));
+    }
+
+    @Test
+    public void depthTable_clampsToCallibratedRange() {
+        byte[] table = new byte[256];
+        DepthJpegProcessor.depthTable(0.25, 4.0, 1.0, 2.0, table);
+
+        // closer than the callibrated near is still valid depth, 1; further than its far is 255
+        assertEquals(1, table[0] & 0xff);
+        assertEquals(255, table[255] & 0xff);
+        for(int i = 0; i < 256; i++) {
+            double depth = (4.0 * 0.25) / (4.0 - (4.0 - 0.25) * i / 255.0);
+            int expected = 1 + (int)Math.rint((Math.min(Math.max(depth, 1.0), 2.0) - 1.0) * 254.0);
+            assertEquals("value " + i, expected, table[i] & 0xff);
+        }
+    }
+
+    @Test
+    public void depth16Table_keepsCallibratedNear() {
+        byte[] table = new byte[0x2000];
+        Depth16Processor.depthTable(0.5, 2.0, table);
+
+        // at and nearer than the callibrated near is the nearest valid depth, not no depth
+        assertEquals(1, table[0] & 0xff);
+        assertEquals(1, table[500] & 0xff);
+        assertEquals(2, table[506] & 0xff);
+        assertEquals(255, table[2000] & 0xff);
+        assertEquals(255, table[0x1fff] & 0xff);
+    }
+
+    // a minimal JPEG: start of image, a scan, fill and end of image
+    private static byte[] jpeg(int fill, int seed) {
+        byte[] jpeg = new byte[fill + 10];
+        jpeg[0] = (byte)0xff;
+        jpeg[1] = (byte)0xd8;
+        jpeg[2] = (byte)0xff;
+        jpeg[3] = (byte)0xda;
+        jpeg[5] = 4;
+        for(int i = 0; i < fill; i++)
+            jpeg[8 + i] = (byte)((i * seed) & 0x7f);
+        jpeg[jpeg.length - 2] = (byte)0xff;
+        jpeg[jpeg.length - 1] = (byte)0xd9;
+        return jpeg;
+    }
+
+    // a primary JPEG carrying a dynamic depth XMP directory, followed by the depth trailer;
+    // depthLength null leaves out Item:Length
+    private static byte[] container(byte[] depth, String depthLength) throws IOException {
+        String xmp = "<x:xmpmeta><rdf:RDF><rdf:Description" +
+                " DepthMap:Format=\"RangeInverse\" DepthMap:Near=\"0.25\" DepthMap:Far=\"4.0\"" +
+                " DepthMap:DepthURI=\"android/depthmap\">" +
+                "<Container:Directory><rdf:Seq>" +
+                "<rdf:li><Container:Item Item:Mime=\"image/jpeg\" Item:Semantic=\"Primary\"/></rdf:li>" +
+                "<rdf:li><Container:Item Item:Mime=\"image/jpeg\" Item:Semantic=\"Depth\"" +
+                " Item:DataURI=\"android/depthmap\"" +
+                (depthLength == null ? "" : " Item:Length=\"" + depthLength + "\"") +
+                "/></rdf:li></rdf:Seq></Container:Directory>" +
+                "</rdf:Description></rdf:RDF></x:xmpmeta>";
+        byte[] header = "http://ns.adobe.com/xap/1.0/\0".getBytes(StandardCharsets.US_ASCII);
+        byte[] packet = xmp.getBytes(StandardCharsets.UTF_8);
+        byte[] primary = jpeg(1000, 5);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(primary, 0, 2);
+        int segmentLength = 2 + header.length + packet.length;
+        output.write(new byte[] { (byte)0xff, (byte)0xe1, (byte)(segmentLength >> 8), (byte)segmentLength });
+        output.write(header);
+        output.write(packet);
+        output.write(primary, 2, primary.length - 2);
+        output.write(depth);
+        return output.toByteArray();
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,122 @@
+package com.kmewhort.funar.processors;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Once warmed up, the Java side of a ContourGenerator frame (levels, isolines, tiles,
+ * millimeter quantizing and vector tracing) must not allocate. The Mats around it are
+ * OpenCV's, so the native side is checked on a device by ContourGeneratorAllocationTest.
+ */
+public class ContourAllocationTest {
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 121;
+    private static final int FRAME_COUNT = 8;
+    private static final int WARM_UP_RUNS = 50;
+    private static final int MEASURED_RUNS = 20;
+    // the JDK's ForkJoinTask may queue a small wait node when the caller has to block on a
+    // band another thread stole; that's the pool's, not the pass's
+    private static final int MAX_JOIN_BYTES_PER_FRAME = 64;
+
+    private final com.sun.management.ThreadMXBean mThreads =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    private final ContourLevels mLevels = new ContourLevels(16, 8);
+    private final IsolineExtractor mExtractor = new IsolineExtractor();
+    private final IsolinePass mPass = new IsolinePass(mExtractor, WIDTH, HEIGHT, 32);
+    private final ForkJoinPool mPool = new ForkJoinPool(2);
+    private final ContourTiles mTiles = new ContourTiles(WIDTH, HEIGHT);
+    private final ContourTracer mTracer = new ContourTracer();
+    private final ContourPolylines mPolylines = new ContourPolylines();
+    private final DepthQuantizer mQuantizer = new DepthQuantizer();
+
+    private final byte[][] mFrames = new byte[FRAME_COUNT][];
+    private final short[][] mMillimeterFrames = new short[FRAME_COUNT][];
+    private final byte[] mIsolines = new byte[WIDTH * HEIGHT];
+    private final byte[] mLevelMap = new byte[WIDTH * HEIGHT];
+    private final byte[] mColorIndex = new byte[WIDTH * HEIGHT];
+    private final byte[] mColormap = new byte[256 * 3];
+    private final byte[] mIsolineColor = { 0, (byte)255, 0 };
+    private final int[] mMillimeterThresholds = { 500, 800, 1100, 1400, 1700 };
+
+    public ContourAllocationTest() {
+        mLevels.setEqualPopulation(16);
+        mQuantizer.setRange(400, 2000);
+        mQuantizer.setThresholds(mMillimeterThresholds, mMillimeterThresholds.length);
+        // a blob moving across a slope, so tiles redraw and contours change every frame
+        for(int f = 0; f < FRAME_COUNT; f++) {
+            mFrames[f] = new byte[WIDTH * HEIGHT];
+            mMillimeterFrames[f] = new short[WIDTH * HEIGHT];
+            for(int y = 0; y < HEIGHT; y++) {
+                for(int x = 0; x < WIDTH; x++) {
+                    int dx = x - 20 - f * 15;
+                    int dy = y - HEIGHT / 2;
+                    int value = 20 + (x + y) * 200 / (WIDTH + HEIGHT);
+                    if(dx * dx + dy * dy < 400)
+                        value += 30;
+                    mFrames[f][y * WIDTH + x] = (byte)value;
+                    mMillimeterFrames[f][y * WIDTH + x] = (short)(400 + value * 6);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void steadyState_allocatesNothing() {
+        for(int i = 0; i < WARM_UP_RUNS; i++)
+            frame(mFrames[i % FRAME_COUNT], mMillimeterFrames[i % FRAME_COUNT]);
+
+        long start = allocatedBytes();
+        for(int i = 0; i < MEASURED_RUNS; i++)
+            frame(mFrames[i % FRAME_COUNT], mMillimeterFrames[i % FRAME_COUNT]);
+        long allocated = allocatedBytes() - start - measuringOverhead();
+
+        assertTrue("allocated " + allocated + " bytes after warm-up", allocated <= 0);
+    }
+
+    @Test
+    public void bandedPass_allocatesNothingOfItsOwn() {
+        for(int i = 0; i < WARM_UP_RUNS; i++)
+            mPass.extract(mPool, mFrames[i % FRAME_COUNT], mIsolines);
+
+        long start = allocatedBytes();
+        for(int i = 0; i < MEASURED_RUNS; i++)
+            mPass.extract(mPool, mFrames[i % FRAME_COUNT], mIsolines);
+        long allocated = allocatedBytes() - start - measuringOverhead();
+
+        assertTrue("allocated " + allocated + " bytes after warm-up",
+                allocated <= MEASURED_RUNS * MAX_JOIN_BYTES_PER_FRAME);
+    }
+
+    // the pure Java passes of a frame, in the order ContourGenerator runs them (with the
+    // isolines extracted serially; the banded pass is checked on its own)
+    private void frame(byte[] depth, short[] millimeters) {
+        if(mLevels.update(depth)) {
+            mExtractor.setThresholds(mLevels.getThresholds(), mLevels.getThresholdCount());
+            mTiles.invalidate();
+        }
+        mExtractor.extract(depth, mIsolines, WIDTH, HEIGHT, 0, HEIGHT);
+        mTiles.update(depth, mIsolines, mExtractor, mColormap, mIsolineColor);
+
+        // the vector output traces the level map
+        for(int i = 0; i < depth.length; i++)
+            mLevelMap[i] = (byte)mExtractor.levelOf(depth[i]);
+        mTracer.trace(mLevelMap, WIDTH, HEIGHT, mLevels.getThresholdCount() + 1, 1f, mPolylines);
+
+        // and 16 bit input is quantized first
+        mQuantizer.quantize(millimeters, mColorIndex, mLevelMap);
+    }
+
+    private long measuringOverhead() {
+        long start = allocatedBytes();
+        return allocatedBytes() - start;
+    }
+
+    private long allocatedBytes() {
+        return mThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
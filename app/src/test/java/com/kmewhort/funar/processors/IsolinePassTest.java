@@ -0,0 +1,116 @@
+package com.kmewhort.funar.processors;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * The banded isoline pass has to give exactly the serial extractor's output, including on
+ * the rows either side of each band boundary and for heights that don't split evenly.
+ */
+public class IsolinePassTest {
+    private static final int[] WIDTHS = { 1, 2, 17, 64 };
+    private static final int[] HEIGHTS = { 1, 2, 3, 31, 33, 65, 97 };
+    private static final int[] BAND_ROWS = { 1, 2, 3, 7, 32 };
+
+    private final ForkJoinPool mPool = new ForkJoinPool(4);
+
+    @Test
+    public void banded_matchesSerial_thresholds() {
+        IsolineExtractor extractor = new IsolineExtractor();
+        int[] thresholds = { 10, 40, 80, 81, 120, 200, 254 };
+        extractor.setThresholds(thresholds, thresholds.length);
+        checkAllSizes(extractor, 256);
+    }
+
+    @Test
+    public void banded_matchesSerial_identityLevels() {
+        IsolineExtractor extractor = new IsolineExtractor();
+        extractor.setIdentityLevels();
+        checkAllSizes(extractor, 16);
+    }
+
+    @Test
+    public void banded_matchesSerial_levelStepOnBandBoundary() {
+        // every band boundary row starts a new level, so each boundary is an isoline
+        IsolineExtractor extractor = new IsolineExtractor();
+        extractor.setIdentityLevels();
+        int width = 20;
+        int height = 45;
+        int bandRows = 5;
+        byte[] depth = new byte[width * height];
+        for(int y = 0; y < height; y++)
+            Arrays.fill(depth, y * width, (y + 1) * width, (byte)(1 + y / bandRows));
+        check(extractor, depth, width, height, bandRows);
+    }
+
+    @Test
+    public void bandRows_coversFrame() {
+        for(int height : HEIGHTS) {
+            int bandRows = IsolinePass.bandRows(height, 4, 32);
+            assertTrue(bandRows >= 32);
+            IsolinePass pass = new IsolinePass(new IsolineExtractor(), 8, height, bandRows);
+            assertEquals((height + bandRows - 1) / bandRows, pass.getBandCount());
+        }
+    }
+
+    private void checkAllSizes(IsolineExtractor extractor, int levels) {
+        Random random = new Random(14);
+        for(int width : WIDTHS) {
+            for(int height : HEIGHTS) {
+                for(int bandRows : BAND_ROWS) {
+                    check(extractor, noisyDepth(random, width, height, levels), width, height, bandRows);
+                    check(extractor, blobDepth(width, height, levels), width, height, bandRows);
+                }
+            }
+        }
+    }
+
+    private void check(IsolineExtractor extractor, byte[] depth, int width, int height, int bandRows) {
+        byte[] serial = new byte[width * height];
+        byte[] banded = new byte[width * height];
+        // stale output from a previous frame, which both have to overwrite
+        Arrays.fill(serial, (byte)7);
+        Arrays.fill(banded, (byte)7);
+
+        extractor.extract(depth, serial, width, height, 0, height);
+        IsolinePass pass = new IsolinePass(extractor, width, height, bandRows);
+        pass.extract(mPool, depth, banded);
+
+        String size = width + "x" + height + " in bands of " + bandRows;
+        assertArrayEquals(size, serial, banded);
+        // and the pass is reusable from frame to frame
+        Arrays.fill(banded, (byte)7);
+        pass.extract(mPool, depth, banded);
+        assertArrayEquals(size + ", second frame", serial, banded);
+    }
+
+    private static byte[] noisyDepth(Random random, int width, int height, int levels) {
+        byte[] depth = new byte[width * height];
+        for(int i = 0; i < depth.length; i++)
+            depth[i] = (byte)random.nextInt(levels);
+        return depth;
+    }
+
+    // a smooth slope with a raised disc in the middle and a hole of no depth
+    private static byte[] blobDepth(int width, int height, int levels) {
+        byte[] depth = new byte[width * height];
+        for(int y = 0; y < height; y++) {
+            for(int x = 0; x < width; x++) {
+                double dx = x - width / 2.0;
+                double dy = y - height / 2.0;
+                int value = (x + y) * (levels - 1) / Math.max(1, width + height - 2);
+                if(dx * dx + dy * dy < width * height / 16.0)
+                    value = Math.min(levels - 1, value + levels / 4);
+                if(Math.abs(dx - width / 4.0) < 2 && Math.abs(dy) < 2)
+                    value = 0;
+                depth[y * width + x] = (byte)value;
+            }
+        }
+        return depth;
+    }
+}